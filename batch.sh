@@ -0,0 +1,3 @@
+#!/bin/bash
+
+java -Djava.library.path=./lib -cp resources/:lib/opencv-246.jar:lib/log4j-1.2.17.jar:bin org.amplexus.opencv.app.BatchDetector "$@"
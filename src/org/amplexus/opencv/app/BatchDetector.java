@@ -0,0 +1,330 @@
+package org.amplexus.opencv.app;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.highgui.Highgui;
+import org.opencv.objdetect.CascadeClassifier;
+
+/*
+ * Runs face detection over an archive of images or a recording, without a display, as fast as all
+ * the cores allow.
+ * 
+ * Usage: BatchDetector <directory|frame source> [--output=file] [--format=csv|jsonl] [--threads=N] [--cascade=/name.xml] [--downscale=F] [--equalize]
+ * 
+ * A directory's images are decoded by the workers themselves, so decoding is spread across the
+ * cores too. Any other source (see FrameSources - e.g. a Motion JPEG recording) is read in order on
+ * the main thread and its frames handed to the workers. Each worker has its own FaceDetector and
+ * classifier, borrowed from the CascadeClassifierPool. Results are written in frame order - to
+ * standard output unless --output is given - with one CSV row per face (or per frame without faces),
+ * or one JSON object per frame, along with the decode and detection time of each frame. Throughput
+ * and how busy each worker was are logged at the end.
+ * 
+ * Needs opencv-246.jar and libopencv_java246.so
+ * Runs with -Djava.library.path=/path/to/lib (containing above .so file)
+ */
+public class BatchDetector {
+
+	static final String CSV = "csv";
+	static final String JSONL = "jsonl";
+	static final int FRAMES_IN_FLIGHT_PER_WORKER = 4;	// Enough to keep the workers busy while the writer catches up
+	static final long WORKER_STOP_SECONDS = 10;			// How long to wait for the jobs still running after one fails
+
+	private static final Logger log = Logger.getLogger(BatchDetector.class);
+
+	/**
+	 * What one frame produced.
+	 */
+	static class Result {
+		final long frameNumber;
+		final String name;
+		String worker;
+		Rect[] faces;
+		long decodeNanos;
+		long detectNanos;
+		long busyNanos;		// Time the worker spent on the frame
+
+		Result(long frameNumber, String name) {
+			this.frameNumber = frameNumber;
+			this.name = name;
+		}
+	}
+
+	private final String cascade;
+	private final double downscaleFactor;
+	private final boolean equalize;
+	private final List<FaceDetector> faceDetectors = Collections.synchronizedList(new ArrayList<FaceDetector>());
+	private final List<CascadeClassifier> classifiers = Collections.synchronizedList(new ArrayList<CascadeClassifier>());
+	private final ThreadLocal<FaceDetector> workerDetector = new ThreadLocal<FaceDetector>() {
+		@Override
+		protected FaceDetector initialValue() {
+			CascadeClassifier classifier = CascadeClassifierPool.getShared().acquire(cascade);
+			classifiers.add(classifier);
+			FaceDetector faceDetector = new FaceDetector(classifier, new DetectionPreprocessor(downscaleFactor, equalize));
+			faceDetectors.add(faceDetector);
+			return faceDetector;
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		PropertyConfigurator.configure("log4j.properties");
+
+		if(args.length == 0 || args[0].startsWith("--")) {
+			System.err.println("Usage: BatchDetector <directory|frame source> [--output=file] [--format=csv|jsonl] [--threads=N] [--cascade=/name.xml] [--downscale=F] [--equalize]");
+			System.exit(2);
+		}
+		String format = CommandLineOptions.getString(args, "format", CSV);
+		if(!CSV.equals(format) && !JSONL.equals(format)) {
+			System.err.println("Unknown format: " + format);
+			System.exit(2);
+		}
+		String outputName = CommandLineOptions.getString(args, "output", null);
+		PrintWriter out = new PrintWriter(new BufferedWriter(outputName == null ? new OutputStreamWriter(System.out) : new FileWriter(outputName)));
+		BatchDetector batch = new BatchDetector(CommandLineOptions.getString(args, "cascade", FaceDetector.LBP_CASCADE),
+				CommandLineOptions.getDouble(args, "downscale", DetectionPreprocessor.DEFAULT_DOWNSCALE_FACTOR), CommandLineOptions.hasFlag(args, "equalize"));
+		try {
+			batch.run(args[0], CommandLineOptions.getInt(args, "threads", Runtime.getRuntime().availableProcessors()), format, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	BatchDetector(String cascade, double downscaleFactor, boolean equalize) {
+		this.cascade = cascade;
+		this.downscaleFactor = downscaleFactor;
+		this.equalize = equalize;
+	}
+
+	void run(String input, int threads, String format, PrintWriter out) throws InterruptedException, ExecutionException {
+		ExecutorService workers = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("batch-worker"));
+		int maxInFlight = threads * FRAMES_IN_FLIGHT_PER_WORKER;
+		Queue<Future<Result>> inFlight = new ArrayDeque<Future<Result>>(maxInFlight);
+		Map<String, long[]> workerTimes = new LinkedHashMap<String, long[]>();	// Worker name -> frames, busy nanos
+		long frames = 0;
+		long faces = 0;
+		if(CSV.equals(format))
+			out.println("frame,source,worker,decode_ms,detect_ms,face_count,x,y,width,height");
+		long startNanos = System.nanoTime();
+
+		File directory = new File(input);
+		FrameSource source = null;
+		FramePool framePool = null;
+		File[] files = null;
+		if(directory.isDirectory()) {
+			files = ImageSequenceFrameSource.listImages(directory);
+			log.info("Detecting faces in " + files.length + " images from " + directory + " with " + threads + " workers");
+		} else {
+			source = FrameSources.create(input, 0);
+			if(!source.open()) {
+				log.error("Couldn't open " + source.getName());
+				workers.shutdown();
+				return;
+			}
+			framePool = new FramePool(maxInFlight + 1);
+			log.info("Detecting faces in " + source.getName() + " with " + threads + " workers");
+		}
+
+		try {
+			for(long frameNumber = 0; ; frameNumber++) {
+				Callable<Result> job;
+				if(files != null) {
+					if(frameNumber == files.length)
+						break;
+					job = new ImageFileJob(frameNumber, files[(int) frameNumber]);
+				} else {
+					Frame frame = framePool.acquire();
+					long decodeStart = System.nanoTime();
+					if(!source.read(frame.image)) {
+						framePool.release(frame);
+						break;
+					}
+					frame.sequence = frameNumber;
+					job = new FrameJob(frameNumber, source.getName() + "#" + frameNumber, frame, framePool, System.nanoTime() - decodeStart);
+				}
+				if(inFlight.size() == maxInFlight)
+					faces += write(inFlight.remove().get(), format, out, workerTimes);
+				inFlight.add(workers.submit(job));
+				frames++;
+			}
+			while(!inFlight.isEmpty())
+				faces += write(inFlight.remove().get(), format, out, workerTimes);
+		} finally {
+			workers.shutdownNow();	// Nothing left to run unless a job failed
+			workers.awaitTermination(WORKER_STOP_SECONDS, TimeUnit.SECONDS);	// The detectors and frames are still in use until they stop
+			if(source != null)
+				source.release();
+			if(framePool != null)
+				framePool.close();
+			for(FaceDetector faceDetector : faceDetectors)
+				faceDetector.release();
+			faceDetectors.clear();
+			for(CascadeClassifier classifier : classifiers)
+				CascadeClassifierPool.getShared().release(cascade, classifier);
+			classifiers.clear();
+		}
+		long elapsedNanos = System.nanoTime() - startNanos;
+		out.flush();
+
+		log.info(String.format("%d frames in %.1f s - %.1f frames/sec, %d faces", frames, elapsedNanos / 1e9, frames * 1e9 / Math.max(1, elapsedNanos), faces));
+		for(Map.Entry<String, long[]> worker : workerTimes.entrySet()) {
+			long[] times = worker.getValue();
+			log.info(String.format("%s: %d frames, busy %.1f s - %.0f%% utilisation", worker.getKey(), times[0], times[1] / 1e9, 100.0 * times[1] / elapsedNanos));
+		}
+	}
+
+	/**
+	 * @return the number of faces written
+	 */
+	private static int write(Result result, String format, PrintWriter out, Map<String, long[]> workerTimes) {
+		long[] times = workerTimes.get(result.worker);
+		if(times == null) {
+			times = new long[2];
+			workerTimes.put(result.worker, times);
+		}
+		times[0]++;
+		times[1] += result.busyNanos;
+
+		String decodeMillis = String.format("%.3f", result.decodeNanos / 1e6);
+		String detectMillis = String.format("%.3f", result.detectNanos / 1e6);
+		if(CSV.equals(format)) {
+			String prefix = result.frameNumber + "," + csvQuote(result.name) + "," + result.worker + "," + decodeMillis + "," + detectMillis + "," + result.faces.length;
+			if(result.faces.length == 0)
+				out.println(prefix + ",,,,");
+			for(Rect face : result.faces)
+				out.println(prefix + "," + face.x + "," + face.y + "," + face.width + "," + face.height);
+		} else {
+			StringBuilder json = new StringBuilder();
+			json.append("{\"frame\":").append(result.frameNumber)
+				.append(",\"source\":\"").append(jsonEscape(result.name))
+				.append("\",\"worker\":\"").append(result.worker)
+				.append("\",\"decodeMs\":").append(decodeMillis)
+				.append(",\"detectMs\":").append(detectMillis)
+				.append(",\"faces\":[");
+			for(int i = 0; i < result.faces.length; i++) {
+				Rect face = result.faces[i];
+				if(i > 0)
+					json.append(',');
+				json.append("{\"x\":").append(face.x).append(",\"y\":").append(face.y)
+					.append(",\"width\":").append(face.width).append(",\"height\":").append(face.height).append('}');
+			}
+			json.append("]}");
+			out.println(json);
+		}
+		return result.faces.length;
+	}
+
+	private static String csvQuote(String value) {
+		if(value.indexOf(',') < 0 && value.indexOf('"') < 0)
+			return value;
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+
+	private static String jsonEscape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/**
+	 * Runs the worker's detector over an image and copies the faces out of its reused buffers.
+	 */
+	private Result detect(Result result, Mat image) {
+		FaceDetector faceDetector = workerDetector.get();
+		long detectStart = System.nanoTime();
+		int faceCount = faceDetector.detect(image);
+		result.detectNanos = System.nanoTime() - detectStart;
+		result.faces = new Rect[faceCount];
+		for(int i = 0; i < faceCount; i++)
+			result.faces[i] = faceDetector.getFace(i).clone();
+		result.worker = Thread.currentThread().getName();
+		return result;
+	}
+
+	/**
+	 * Decodes and searches one image file.
+	 */
+	private class ImageFileJob implements Callable<Result> {
+
+		private final long frameNumber;
+		private final File file;
+
+		ImageFileJob(long frameNumber, File file) {
+			this.frameNumber = frameNumber;
+			this.file = file;
+		}
+
+		public Result call() {
+			Result result = new Result(frameNumber, file.getPath());
+			long decodeStart = System.nanoTime();
+			Mat image = Highgui.imread(file.getPath());
+			long decodeNanos = System.nanoTime() - decodeStart;
+			try {
+				if(image.empty()) {
+					log.warn("Skipping unreadable image: " + file);
+					result.faces = new Rect[0];
+					result.worker = Thread.currentThread().getName();
+				} else {
+					detect(result, image);
+				}
+				result.decodeNanos = decodeNanos;
+				result.busyNanos = System.nanoTime() - decodeStart;
+				return result;
+			} finally {
+				image.release();
+			}
+		}
+	}
+
+	/**
+	 * Searches a frame already read from a source, then hands it back to the pool.
+	 */
+	private class FrameJob implements Callable<Result> {
+
+		private final long frameNumber;
+		private final String name;
+		private final Frame frame;
+		private final FramePool framePool;
+		private final long decodeNanos;
+
+		FrameJob(long frameNumber, String name, Frame frame, FramePool framePool, long decodeNanos) {
+			this.frameNumber = frameNumber;
+			this.name = name;
+			this.frame = frame;
+			this.framePool = framePool;
+			this.decodeNanos = decodeNanos;
+		}
+
+		public Result call() {
+			long start = System.nanoTime();
+			try {
+				Result result = detect(new Result(frameNumber, name), frame.image);
+				result.decodeNanos = decodeNanos;	// Read on the main thread
+				result.busyNanos = System.nanoTime() - start;
+				return result;
+			} finally {
+				framePool.release(frame);
+			}
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package org.amplexus.opencv.app;
+
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Replaces the frame's image with its Canny edges. Best run after a GrayscaleProcessor.
+ */
+public class CannyEdgeProcessor implements FrameProcessor {
+
+	public static final double DEFAULT_LOW_THRESHOLD = 200.0;
+	public static final double DEFAULT_HIGH_THRESHOLD = 300.0;
+
+	private final double lowThreshold;
+	private final double highThreshold;
+	private final Mat edges = new Mat();	// Canny can't work in place
+
+	public CannyEdgeProcessor() {
+		this(DEFAULT_LOW_THRESHOLD, DEFAULT_HIGH_THRESHOLD);
+	}
+
+	public CannyEdgeProcessor(double lowThreshold, double highThreshold) {
+		this.lowThreshold = lowThreshold;
+		this.highThreshold = highThreshold;
+	}
+
+	@Override
+	public boolean process(Frame frame) {
+		Imgproc.Canny(frame.image, edges, lowThreshold, highThreshold);
+		edges.copyTo(frame.image);
+		return true;
+	}
+
+	@Override
+	public void close() {
+		edges.release();
+	}
+
+	@Override
+	public String getName() {
+		return "canny";
+	}
+}
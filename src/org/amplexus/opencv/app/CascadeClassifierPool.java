@@ -0,0 +1,135 @@
+package org.amplexus.opencv.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.opencv.objdetect.CascadeClassifier;
+
+/**
+ * Hands out loaded, warmed up cascade classifiers and takes them back, so each one is only parsed once.
+ * 
+ * The cascades live in resources/, on the classpath. getResource(...).getPath() only works while they
+ * are loose files - inside a jar it gives a "...jar!/..." path that CascadeClassifier can't open, and
+ * the classifier silently comes back empty. So each cascade is copied to a temporary file the first
+ * time it is needed, and loaded from there.
+ * 
+ * CascadeClassifier isn't thread safe, so an instance is only ever lent to one borrower at a time. The
+ * pool grows to as many instances of a cascade as are in use at once - one per detection thread - and
+ * keeps them for the next borrower.
+ */
+public class CascadeClassifierPool {
+
+	static final int WARMUP_WIDTH = 320;		// A 640x480 frame at the default 1/2 detection scale
+	static final int WARMUP_HEIGHT = 240;
+
+	private static final Logger log = Logger.getLogger(CascadeClassifierPool.class);
+	private static final CascadeClassifierPool shared = new CascadeClassifierPool();
+
+	private final Map<String, File> cascadeFiles = new HashMap<String, File>();
+	private final ConcurrentMap<String, Queue<CascadeClassifier>> idle = new ConcurrentHashMap<String, Queue<CascadeClassifier>>();
+	private final AtomicInteger loadedCount = new AtomicInteger();
+
+	/**
+	 * @return the pool the whole application shares
+	 */
+	public static CascadeClassifierPool getShared() {
+		return shared;
+	}
+
+	/**
+	 * @param cascadeResource the cascade on the classpath, e.g. FaceDetector.LBP_CASCADE
+	 * @return a classifier for the caller's exclusive use until it is handed back with release()
+	 */
+	public CascadeClassifier acquire(String cascadeResource) {
+		CascadeClassifier classifier = idleClassifiers(cascadeResource).poll();
+		return classifier != null ? classifier : load(cascadeResource);
+	}
+
+	/**
+	 * Hands a classifier back for the next borrower. Null is ignored.
+	 */
+	public void release(String cascadeResource, CascadeClassifier classifier) {
+		if(classifier != null)
+			idleClassifiers(cascadeResource).offer(classifier);
+	}
+
+	/**
+	 * Loads and warms up classifiers until at least count of them are waiting to be borrowed, so the
+	 * next count acquire() calls return immediately.
+	 */
+	public void preload(String cascadeResource, int count) {
+		Queue<CascadeClassifier> classifiers = idleClassifiers(cascadeResource);
+		while(classifiers.size() < count)
+			classifiers.offer(load(cascadeResource));
+	}
+
+	/**
+	 * @return the cascade copied out of the classpath to a real file, extracting it if this is the first time it's been asked for
+	 */
+	public synchronized File getCascadeFile(String cascadeResource) {
+		File file = cascadeFiles.get(cascadeResource);
+		if(file == null) {
+			file = extract(cascadeResource);
+			cascadeFiles.put(cascadeResource, file);
+		}
+		return file;
+	}
+
+	/**
+	 * @return how many classifiers have been parsed, over all cascades - stops growing once every detection thread has one
+	 */
+	public int getLoadedCount() {
+		return loadedCount.get();
+	}
+
+	private Queue<CascadeClassifier> idleClassifiers(String cascadeResource) {
+		Queue<CascadeClassifier> classifiers = idle.get(cascadeResource);
+		if(classifiers == null) {
+			Queue<CascadeClassifier> newClassifiers = new ConcurrentLinkedQueue<CascadeClassifier>();
+			classifiers = idle.putIfAbsent(cascadeResource, newClassifiers);
+			if(classifiers == null)
+				classifiers = newClassifiers;
+		}
+		return classifiers;
+	}
+
+	private CascadeClassifier load(String cascadeResource) {
+		long start = System.nanoTime();
+		CascadeClassifier classifier = FaceDetector.loadClassifier(cascadeResource);
+		FaceDetector.warmUp(classifier, WARMUP_WIDTH, WARMUP_HEIGHT);
+		loadedCount.incrementAndGet();
+		log.info(String.format("Loaded %s in %.0f ms", cascadeResource, (System.nanoTime() - start) / 1e6));
+		return classifier;
+	}
+
+	private static File extract(String cascadeResource) {
+		InputStream in = CascadeClassifierPool.class.getResourceAsStream(cascadeResource);
+		if(in == null)
+			throw new IllegalArgumentException("No cascade " + cascadeResource + " on the classpath");
+		try {
+			String name = new File(cascadeResource).getName();
+			File file = File.createTempFile(name.replace(".xml", "-"), ".xml");
+			file.deleteOnExit();
+			Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return file;
+		} catch (IOException e) {
+			throw new IllegalStateException("Couldn't extract cascade " + cascadeResource, e);
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
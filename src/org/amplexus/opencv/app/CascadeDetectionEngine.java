@@ -0,0 +1,43 @@
+package org.amplexus.opencv.app;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Size;
+import org.opencv.objdetect.CascadeClassifier;
+
+/**
+ * The plain engine: one cascade classifier, run on the calling thread.
+ */
+public class CascadeDetectionEngine implements DetectionEngine {
+
+	private volatile CascadeClassifier classifier;
+
+	public CascadeDetectionEngine(CascadeClassifier classifier) {
+		this.classifier = classifier;
+	}
+
+	/**
+	 * Switches cascade from the next detection.
+	 */
+	public void setClassifier(CascadeClassifier classifier) {
+		this.classifier = classifier;
+	}
+
+	public CascadeClassifier getClassifier() {
+		return classifier;
+	}
+
+	@Override
+	public void detectMultiScale(Mat image, MatOfRect objects) {
+		classifier.detectMultiScale(image, objects);
+	}
+
+	@Override
+	public void detectMultiScale(Mat image, MatOfRect objects, double scaleFactor, int minNeighbors, int flags, Size minSize, Size maxSize) {
+		classifier.detectMultiScale(image, objects, scaleFactor, minNeighbors, flags, minSize, maxSize);
+	}
+
+	@Override
+	public void release() {
+	}
+}
@@ -0,0 +1,51 @@
+package org.amplexus.opencv.app;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How long pan/tilt commands take to reach the robot, from handing one to the XBee to its
+ * TxStatusResponse saying it was delivered - the radio round trip only, not any wait for the link
+ * or for the port to open. Used to aim at where the face will be when the head actually moves.
+ * 
+ * Recorded by the sending thread, read by the detection thread.
+ */
+public class CommandLatency {
+
+	static final double SMOOTHING = 0.2;		// Weight of the newest delivery in the moving average
+
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private volatile double averageNanos = 0;
+
+	/**
+	 * @param nanos how long one command took to be delivered
+	 */
+	public synchronized void record(long nanos) {
+		averageNanos = count.getAndIncrement() == 0 ? nanos : averageNanos + SMOOTHING * (nanos - averageNanos);
+		if(nanos > maxNanos.get())
+			maxNanos.set(nanos);
+	}
+
+	/**
+	 * @return the moving average delivery time, or 0 before any command has been delivered
+	 */
+	public double getAverageSeconds() {
+		return averageNanos / 1e9;
+	}
+
+	public double getMaxMillis() {
+		return maxNanos.get() / 1e6;
+	}
+
+	/**
+	 * @return the number of commands delivered
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("delivered %d, %.1f ms avg / %.1f ms max", count.get(), averageNanos / 1e6, getMaxMillis());
+	}
+}
@@ -0,0 +1,44 @@
+package org.amplexus.opencv.app;
+
+/**
+ * Picks "--name" flags and "--name=value" options out of a main() argument list.
+ * Anything that doesn't start with "--" is left for FrameSources.
+ */
+public class CommandLineOptions {
+
+	private CommandLineOptions() {
+	}
+
+	/**
+	 * @return true if "--name" appears in the arguments
+	 */
+	public static boolean hasFlag(String[] args, String name) {
+		for(String arg : args) {
+			if(arg.equals("--" + name))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the value of "--name=value", or defaultValue if the option isn't given
+	 */
+	public static String getString(String[] args, String name, String defaultValue) {
+		String prefix = "--" + name + "=";
+		for(String arg : args) {
+			if(arg.startsWith(prefix))
+				return arg.substring(prefix.length());
+		}
+		return defaultValue;
+	}
+
+	public static int getInt(String[] args, String name, int defaultValue) {
+		String value = getString(args, name, null);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	public static double getDouble(String[] args, String name, double defaultValue) {
+		String value = getString(args, name, null);
+		return value == null ? defaultValue : Double.parseDouble(value);
+	}
+}
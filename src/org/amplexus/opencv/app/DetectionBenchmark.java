@@ -0,0 +1,172 @@
+package org.amplexus.opencv.app;
+
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+import org.opencv.core.Core;
+
+/*
+ * Measures the frames/sec of the face detection loop without a camera or a display, and checks that
+ * the loop stops allocating frame and result buffers once it has warmed up (exits with status 1 if not).
+ * 
+ * Usage: DetectionBenchmark [<frame source>] [--fast] [--loop] [--frames=N] [--downscale=F] [--equalize] [--roi] [--full-scan-interval=N] [--detect-every=K]
+ *                           [--engine=cascade|tiled|bands] [--threads=N] [--scaling] [--motion-gate] [--motion-threshold=N]
+ * 
+ * The frame source uses the same syntax as the other main loops (see FrameSources) and defaults to
+ * the sample images in resources/, replayed in a loop as fast as possible. The engine options are
+ * as per DetectionEngines. --scaling runs the tiled engine with 1, 2, ... up to one thread per core
+ * and reports the speed up over a single thread. Along with the average, the 99th percentile and
+ * worst frame times are logged, since engines like ScaleBandDetectionEngine are about the slow frames.
+ * 
+ * Needs opencv-246.jar and libopencv_java246.so
+ * Runs with -Djava.library.path=/path/to/lib (containing above .so file)
+ */
+public class DetectionBenchmark {
+
+	static final String CASCADE_CLASSIFIER_FILENAME = "/lbpcascade_frontalface.xml";
+	static final String DEFAULT_SOURCE = "resources/img1.png,resources/img2.png,resources/AverageMaleFace.jpg";
+	static final int DEFAULT_FRAMES = 5000;
+	static final int FRAME_POOL_SIZE = 3;
+	static final int WARMUP_FRAMES = 20;
+
+	private static final Logger log = Logger.getLogger(DetectionBenchmark.class);
+
+	public static void main(String[] args) {
+
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		PropertyConfigurator.configure("log4j.properties");
+
+		boolean buffersFlat = true;
+		if(CommandLineOptions.hasFlag(args, "scaling")) {
+			double singleThreadedFps = 0;
+			for(int threads = 1; threads <= Runtime.getRuntime().availableProcessors(); threads++) {
+				log.info("Tiled engine with " + threads + " thread(s)");
+				FrameSource source = openSource(args); // Afresh for each run - a source that doesn't loop would be used up by the first
+				if(source == null)
+					System.exit(1);
+				double fps = run(source, DetectionEngines.create(DetectionEngines.TILED, CASCADE_CLASSIFIER_FILENAME, threads), args);
+				source.release();
+				if(fps < 0)
+					buffersFlat = false;
+				if(threads == 1 && fps <= 0) {
+					log.error("The single threaded run failed, so there's nothing to compare the others with");
+					System.exit(1);
+				}
+				if(threads == 1)
+					singleThreadedFps = fps;
+				if(fps > 0)
+					log.info(String.format("%d thread(s): %.1f frames/sec, %.2fx single threaded", threads, fps, fps / singleThreadedFps));
+			}
+		} else {
+			FrameSource source = openSource(args);
+			if(source == null)
+				System.exit(1);
+			buffersFlat = run(source, DetectionEngines.fromArgs(args, CASCADE_CLASSIFIER_FILENAME), args) >= 0;
+			source.release();
+		}
+		if(!buffersFlat)
+			System.exit(1);
+	}
+
+	/**
+	 * @return the source named on the command line, or the looping sample clip, opened - or null if it couldn't be
+	 */
+	private static FrameSource openSource(String[] args) {
+		FrameSource source;
+		if(args.length == 0 || args[0].startsWith("--")) {
+			source = FrameSources.create(DEFAULT_SOURCE, 0);
+			((ReplayFrameSource) source).setLooping(true);
+		} else {
+			source = FrameSources.fromArgs(args, -1);
+		}
+		if(!source.open()) {
+			log.error("Couldn't open " + source.getName());
+			return null;
+		}
+		return source;
+	}
+
+	/**
+	 * Runs the detection loop over the source with a fresh FaceDetector around the given engine.
+	 * 
+	 * @return the measured frames/sec, 0 if the source ran out during warm up, or -1 if the frame or result buffers grew after warm up
+	 */
+	private static double run(FrameSource source, DetectionEngine engine, String[] args) {
+		int frames = CommandLineOptions.getInt(args, "frames", DEFAULT_FRAMES);
+		DetectionPreprocessor preprocessor = new DetectionPreprocessor(CommandLineOptions.getDouble(args, "downscale", DetectionPreprocessor.DEFAULT_DOWNSCALE_FACTOR),
+				CommandLineOptions.hasFlag(args, "equalize"));
+		FaceDetector faceDetector = new FaceDetector(engine, preprocessor);
+		faceDetector.setRegionOfInterestTracking(CommandLineOptions.hasFlag(args, "roi"));
+		faceDetector.setFullScanInterval(CommandLineOptions.getInt(args, "full-scan-interval", FaceDetector.DEFAULT_FULL_SCAN_INTERVAL));
+		faceDetector.setDetectionInterval(CommandLineOptions.getInt(args, "detect-every", FaceDetector.DEFAULT_DETECTION_INTERVAL));
+		if(CommandLineOptions.hasFlag(args, "motion-gate"))
+			faceDetector.setMotionGate(new MotionGate(CommandLineOptions.getInt(args, "motion-threshold", MotionGate.DEFAULT_PIXEL_THRESHOLD), MotionGate.DEFAULT_MIN_CHANGED_FRACTION));
+		FramePool framePool = new FramePool(FRAME_POOL_SIZE);
+		int processed = 0;
+		long faces = 0;
+		long startNanos = 0;
+		int warmAllocatedCount = 0;
+		int warmHighWaterMark = 0;
+		int warmCapacityGrowths = 0;
+		long[] frameNanos = new long[frames];
+		while(processed < frames + WARMUP_FRAMES) {
+			Frame frame = framePool.acquire();
+			if(!source.read(frame.image)) {
+				framePool.release(frame);
+				break;
+			}
+			if(processed == WARMUP_FRAMES) {
+				warmAllocatedCount = framePool.getAllocatedCount();
+				warmHighWaterMark = framePool.getHighWaterMark();
+				warmCapacityGrowths = faceDetector.getCapacityGrowths();
+				startNanos = System.nanoTime();
+			}
+			long frameStart = System.nanoTime();
+			faces += faceDetector.detect(frame.image);
+			if(processed >= WARMUP_FRAMES)
+				frameNanos[processed - WARMUP_FRAMES] = System.nanoTime() - frameStart;
+			faceDetector.drawFaces(frame.image);
+			framePool.release(frame);
+			processed++;
+		}
+		long elapsedNanos = System.nanoTime() - startNanos;
+		faceDetector.release();
+		framePool.close();
+
+		int measured = processed - WARMUP_FRAMES;
+		if(measured <= 0) {
+			log.error("Source ran out of frames during warm up");
+			return 0;
+		}
+		double fps = measured * 1e9 / elapsedNanos;
+		log.info(String.format("%s at 1/%.1f scale: %d frames in %.1f ms - %.1f frames/sec, %.2f ms/frame, %d faces",
+				source.getName(), preprocessor.getDownscaleFactor(), measured, elapsedNanos / 1e6, fps, elapsedNanos / 1e6 / measured, faces));
+		Arrays.sort(frameNanos, 0, measured);
+		log.info(String.format("Detection time: median %.2f ms, 99th percentile %.2f ms, worst %.2f ms",
+				frameNanos[measured / 2] / 1e6, frameNanos[Math.min(measured - 1, measured * 99 / 100)] / 1e6, frameNanos[measured - 1] / 1e6));
+
+		if(faceDetector.isRegionOfInterestTracking())
+			log.info("Region of interest tracking: " + faceDetector.getRegionScanCount() + " window searches, " + faceDetector.getFullScanCount() + " full frame searches");
+
+		if(faceDetector.getMotionGate() != null)
+			log.info("Motion gate: " + faceDetector.getMotionSkipCount() + " frames skipped as static, " + faceDetector.getMotionRegionScanCount() + " searched only where they moved");
+
+		if(faceDetector.getDetectionInterval() > 1)
+			log.info("Inter-detection tracking: " + faceDetector.getTrackedCount() + " frames tracked by template matching");
+
+		/*
+		 * Once warmed up the detection loop must not allocate - if the pool or the detector's result buffers
+		 * grew while we were measuring, something is leaking frames.
+		 */
+		if(framePool.getAllocatedCount() != warmAllocatedCount || framePool.getHighWaterMark() != warmHighWaterMark
+				|| faceDetector.getCapacityGrowths() != warmCapacityGrowths) {
+			log.error("Buffers grew after warm up: frames allocated " + warmAllocatedCount + " -> " + framePool.getAllocatedCount()
+					+ ", high-water mark " + warmHighWaterMark + " -> " + framePool.getHighWaterMark()
+					+ ", result buffer growths " + warmCapacityGrowths + " -> " + faceDetector.getCapacityGrowths());
+			return -1;
+		}
+		log.info("Buffers stayed flat: " + framePool.getAllocatedCount() + " frames allocated, high-water mark " + framePool.getHighWaterMark());
+		return fps;
+	}
+}
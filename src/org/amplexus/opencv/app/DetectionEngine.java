@@ -0,0 +1,30 @@
+package org.amplexus.opencv.app;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Size;
+
+/**
+ * Something that finds faces in an image the way CascadeClassifier.detectMultiScale does.
+ * 
+ * Lets FaceDetector swap the plain single threaded cascade for a parallel engine without anything
+ * else in the detection loop noticing.
+ */
+public interface DetectionEngine {
+
+	/**
+	 * Finds faces of any size.
+	 */
+	void detectMultiScale(Mat image, MatOfRect objects);
+
+	/**
+	 * Finds faces between minSize and maxSize, with the same parameters as CascadeClassifier.detectMultiScale.
+	 * An empty maxSize means no upper limit.
+	 */
+	void detectMultiScale(Mat image, MatOfRect objects, double scaleFactor, int minNeighbors, int flags, Size minSize, Size maxSize);
+
+	/**
+	 * Shuts down any worker threads. The engine must not be used afterwards.
+	 */
+	void release();
+}
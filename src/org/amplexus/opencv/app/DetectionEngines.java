@@ -0,0 +1,37 @@
+package org.amplexus.opencv.app;
+
+/**
+ * Builds a DetectionEngine from the command line, so every main loop picks its engine the same way:
+ * 
+ *	--engine=cascade	one cascade on the detection thread (the default)
+ *	--engine=tiled		TiledDetectionEngine, with --threads=N workers (defaults to one per core)
+ *	--engine=bands		ScaleBandDetectionEngine, with --threads=N workers (defaults to one per core, at most one per band)
+ */
+public class DetectionEngines {
+
+	public static final String CASCADE	= "cascade";
+	public static final String TILED	= "tiled";
+	public static final String BANDS	= "bands";
+
+	private DetectionEngines() {
+	}
+
+	public static DetectionEngine fromArgs(String[] args, String cascadeResource) {
+		return create(CommandLineOptions.getString(args, "engine", CASCADE), cascadeResource,
+				CommandLineOptions.getInt(args, "threads", Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * @param name one of CASCADE, TILED or BANDS
+	 * @param threads worker threads, for the engines that have them
+	 */
+	public static DetectionEngine create(String name, String cascadeResource, int threads) {
+		if(TILED.equals(name))
+			return new TiledDetectionEngine(cascadeResource, threads, TiledDetectionEngine.DEFAULT_TILE_ROWS, TiledDetectionEngine.DEFAULT_TILE_COLUMNS, TiledDetectionEngine.DEFAULT_OVERLAP_RATIO);
+		if(BANDS.equals(name))
+			return new ScaleBandDetectionEngine(cascadeResource, Math.min(threads, ScaleBandDetectionEngine.DEFAULT_BANDS), ScaleBandDetectionEngine.DEFAULT_BANDS);
+		if(CASCADE.equals(name))
+			return new CascadeDetectionEngine(FaceDetector.loadClassifier(cascadeResource));
+		throw new IllegalArgumentException("Unknown detection engine: " + name);
+	}
+}
@@ -0,0 +1,103 @@
+package org.amplexus.opencv.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+/*
+ * Measures what it costs to turn a frame into a BufferedImage for display: the old JPEG round trip
+ * (Highgui.imencode, copy out to a byte[], ImageIO.read) against MatImageConverter's direct copy,
+ * for both a colour and a grey scale frame.
+ * 
+ * Usage: DisplayConversionBenchmark [<frame source>] [--frames=N]
+ * 
+ * Without a frame source a 640x480 frame of random noise is used, which is the worst case for the
+ * JPEG encoder. Otherwise the first frame from the source (see FrameSources) is used.
+ * 
+ * Needs opencv-246.jar and libopencv_java246.so
+ * Runs with -Djava.library.path=/path/to/lib (containing above .so file)
+ */
+public class DisplayConversionBenchmark {
+
+	static final int DEFAULT_WIDTH = 640;
+	static final int DEFAULT_HEIGHT = 480;
+	static final int DEFAULT_FRAMES = 500;
+	static final int WARMUP_FRAMES = 20;
+
+	private static final Logger log = Logger.getLogger(DisplayConversionBenchmark.class);
+
+	public static void main(String[] args) throws IOException {
+
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		PropertyConfigurator.configure("log4j.properties");
+
+		Mat colour = new Mat();
+		if(args.length == 0 || args[0].startsWith("--")) {
+			colour.create(DEFAULT_HEIGHT, DEFAULT_WIDTH, CvType.CV_8UC3);
+			Core.randu(colour, 0, 256);
+		} else {
+			FrameSource source = FrameSources.fromArgs(args, -1);
+			if(!source.open() || !source.read(colour)) {
+				log.error("Couldn't read a frame from " + source.getName());
+				return;
+			}
+			source.release();
+		}
+		Mat grey = new Mat();
+		Imgproc.cvtColor(colour, grey, Imgproc.COLOR_BGR2GRAY);
+
+		int frames = CommandLineOptions.getInt(args, "frames", DEFAULT_FRAMES);
+		for(Mat image : new Mat[] { colour, grey }) {
+			String name = image.cols() + "x" + image.rows() + (image.channels() == 1 ? " grey" : " colour");
+			double jpegMillis = timeJpegRoundTrip(image, frames);
+			double directMillis = timeDirectCopy(image, frames);
+			log.info(String.format("%s: JPEG round trip %.2f ms/frame, direct copy %.3f ms/frame, %.0fx faster",
+					name, jpegMillis, directMillis, jpegMillis / directMillis));
+		}
+		colour.release();
+		grey.release();
+	}
+
+	/**
+	 * @return the average milliseconds per frame of converting the way the main loops used to
+	 */
+	private static double timeJpegRoundTrip(Mat image, int frames) throws IOException {
+		MatOfByte encoded = new MatOfByte();
+		long start = 0;
+		for(int i = -WARMUP_FRAMES; i < frames; i++) {
+			if(i == 0)
+				start = System.nanoTime();
+			Highgui.imencode(".jpg", image, encoded); // Mapping #1
+			ImageIO.read(new ByteArrayInputStream(encoded.toArray())); // Mappings #2 and #3
+		}
+		double millis = (System.nanoTime() - start) / 1e6 / frames;
+		encoded.release();
+		return millis;
+	}
+
+	/**
+	 * @return the average milliseconds per frame of converting with MatImageConverter
+	 */
+	private static double timeDirectCopy(Mat image, int frames) {
+		MatImageConverter converter = new MatImageConverter();
+		long start = 0;
+		for(int i = -WARMUP_FRAMES; i < frames; i++) {
+			if(i == 0)
+				start = System.nanoTime();
+			converter.convert(image);
+		}
+		double millis = (System.nanoTime() - start) / 1e6 / frames;
+		converter.release();
+		return millis;
+	}
+}
@@ -0,0 +1,80 @@
+package org.amplexus.opencv.app;
+
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+
+/**
+ * Shows each frame in a window, which is opened on the first frame.
+ * 
+ * Frames go to a VideoPanel, which copies them and paints the newest at the display's refresh rate,
+ * so this stage never waits for the GUI and the GUI never falls behind this stage. The frame's
+ * detections are drawn over it by the panel, leaving the frame as captured for any stage after this
+ * one. Pressing O in the window switches the overlay on and off.
+ */
+public class DisplayProcessor implements FrameProcessor {
+
+	private final String title;
+	private final double maxFps;
+	private volatile VideoPanel videoPanel = null;
+
+	public DisplayProcessor(String title) {
+		this(title, VideoPanel.getRefreshRate());
+	}
+
+	/**
+	 * @param maxFps the most times a second to repaint the window
+	 */
+	public DisplayProcessor(String title, double maxFps) {
+		this.title = title;
+		this.maxFps = maxFps;
+	}
+
+	@Override
+	public boolean process(Frame frame) {
+		if(videoPanel == null) {
+			videoPanel = new VideoPanel(frame.image.cols(), frame.image.rows(), maxFps);
+			final VideoPanel panel = videoPanel;
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					JFrame window = new JFrame(title);
+					window.getContentPane().add(panel);
+					window.addKeyListener(new KeyAdapter() {
+						@Override
+						public void keyPressed(KeyEvent e) {
+							if(e.getKeyCode() == KeyEvent.VK_O)
+								panel.setOverlayEnabled(!panel.getOverlay().isEnabled());
+						}
+					});
+					window.pack();
+					window.setVisible(true);
+				}
+			});
+		}
+		videoPanel.show(frame.image, frame.captureNanos, frame.detections);
+		return true;
+	}
+
+	/**
+	 * @return frames painted and dropped, and paint latency, since the last report - or null before the first frame
+	 */
+	public String report() {
+		return videoPanel == null ? null : videoPanel.report();
+	}
+
+	/**
+	 * Leaves the window up showing the last frame.
+	 */
+	@Override
+	public void close() {
+		if(videoPanel != null)
+			videoPanel.release();
+	}
+
+	@Override
+	public String getName() {
+		return "display";
+	}
+}
@@ -1,95 +1,43 @@
 package org.amplexus.opencv.app;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-
-import javax.imageio.ImageIO;
-import javax.swing.ImageIcon;
-import javax.swing.JButton;
-import javax.swing.JFrame;
-import javax.swing.JLabel;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfByte;
-import org.opencv.core.MatOfRect;
-import org.opencv.core.Point;
-import org.opencv.core.Rect;
-import org.opencv.core.Scalar;
-import org.opencv.core.Size;
-import org.opencv.highgui.Highgui;
-import org.opencv.highgui.VideoCapture;
-import org.opencv.imgproc.Imgproc;
-import org.opencv.objdetect.CascadeClassifier;
-import org.opencv.video.*;
 
 /*
  * Detects edges in a video stream. See http://docs.opencv.org/java/
  * 
+ * A FramePipeline configuration: grey scale, Canny, then display, each stage on its own thread.
+ * 
  * Needs opencv-244.jar and libopencv_java246.so
  * Runs with -Djava.library.path=/path/to/lib (containing above .so file)
  */
 public class EdgeDetector {
 	
+	static final int STATS_INTERVAL_SECONDS = 5;
+
 	private static final Logger log = Logger.getLogger(EdgeDetector.class);
 
-	public static void main(String[] args) {
+	public static void main(String[] args) throws InterruptedException {
 
 		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		PropertyConfigurator.configure("log4j.properties");
 		System.out.println("Running DetectFaceDemo");
-		JFrame frame = new JFrame();
-		Mat webcamImage = new Mat();
-		Mat edgesImage = new Mat();
-		
-		VideoCapture capture = new VideoCapture(-1);
-		if (capture.isOpened()) {
-			while (true) {
-				capture.read(webcamImage);
-				if (!webcamImage.empty()) {
-					Imgproc.Canny(webcamImage, edgesImage, 200.0, 300.0);
-					showResult(edgesImage);
-				} else {
-					System.out.println(" --(!) No captured frame -- Break!");
-					break;
-				}
-			}
-		}
+		FramePipeline pipeline = new FramePipeline(FrameSources.fromArgs(args, -1))
+				.add(new GrayscaleProcessor())
+				.add(new CannyEdgeProcessor())
+				.add(new DisplayProcessor("Edge Detector"));
+		if(!pipeline.start())
+			return;
+		while(!pipeline.awaitCompletion(STATS_INTERVAL_SECONDS, TimeUnit.SECONDS))
+			log.info(pipeline.report());
+		System.out.println(" --(!) No captured frame -- Break!");
 	}
 
-	static JFrame frame = null;
-	static ImageIcon icon = null;
-	public static void showResult(Mat imgMat) {
-		
-//		Imgproc.resize(imgMat, imgMat, new Size(640, 480)); // Mapping #0
-		MatOfByte matOfByte = new MatOfByte();
-		Highgui.imencode(".jpg", imgMat, matOfByte); // Mapping #1
-		byte[] byteArray = matOfByte.toArray(); // Mapping #2
-		BufferedImage bufImage = null;
-		InputStream in = new ByteArrayInputStream(byteArray);
-		try {
-			bufImage = ImageIO.read(in); // Mapping #3
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		if(icon == null) {
-			icon = new ImageIcon(bufImage);
-		} else {
-			icon.setImage(bufImage);
-		}
-		if(frame == null) {
-			frame = new JFrame();
-			frame.getContentPane().add(new JLabel(icon));
-			frame.pack();
-			frame.setVisible(true);
-		} else {
-			frame.repaint();
-		}
-	}
-	
 	private Mat greyscaleToBinary(Mat greyscaleMat){
 
 	    int size = (int) greyscaleMat.total() * greyscaleMat.channels();
@@ -0,0 +1,57 @@
+package org.amplexus.opencv.app;
+
+import org.opencv.core.Core;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+/**
+ * Draws the frame's detections onto its image: a box round each face (yellow if it came from the
+ * template tracker), each confirmed track's ID, and a thicker box round the target.
+ * 
+ * This changes the frame for every stage after it, so it's only for when the boxes must end up in
+ * the pixels, e.g. in a recording. For display a VideoPanel draws them over the frame instead.
+ */
+public class FaceAnnotationProcessor implements FrameProcessor {
+
+	private final Point topLeft = new Point();
+	private final Point bottomRight = new Point();
+
+	@Override
+	public boolean process(Frame frame) {
+		FrameDetections detections = frame.detections;
+		for(int i = 0; i < detections.getFaceCount(); i++) {
+			Rect face = detections.getFace(i);
+			setCorners(face);
+			Core.rectangle(frame.image, topLeft, bottomRight, detections.isTracked() ? FaceDetector.TRACKED_FACE_COLOUR : FaceDetector.FACE_COLOUR);
+		}
+		for(int i = 0; i < detections.getTrackCount(); i++) {
+			Rect box = detections.getTrackBox(i);
+			boolean target = detections.getTrackId(i) == detections.getTargetId();
+			if(target) {
+				setCorners(box);
+				Core.rectangle(frame.image, topLeft, bottomRight, MultiFaceTracker.TARGET_COLOUR, 2);
+			}
+			topLeft.x = box.x;
+			topLeft.y = Math.max(12, box.y - 4);
+			Core.putText(frame.image, detections.getTrackLabel(i), topLeft, Core.FONT_HERSHEY_SIMPLEX, 0.5,
+					target ? MultiFaceTracker.TARGET_COLOUR : MultiFaceTracker.TRACK_COLOUR);
+		}
+		return true;
+	}
+
+	private void setCorners(Rect rect) {
+		topLeft.x = rect.x;
+		topLeft.y = rect.y;
+		bottomRight.x = rect.x + rect.width;
+		bottomRight.y = rect.y + rect.height;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public String getName() {
+		return "annotate";
+	}
+}
@@ -0,0 +1,118 @@
+package org.amplexus.opencv.app;
+
+import org.apache.log4j.Logger;
+import org.opencv.core.Rect;
+
+/**
+ * The face detection stage: runs a FaceDetector over each frame, follows the faces with a
+ * MultiFaceTracker, and records the results in the frame's detections for the stages after it.
+ * 
+ * A QualityGovernor, if set, picks the detector's settings and which frames to skip; a skipped
+ * frame carries the previous frame's detections. A Listener is told about the target face in every
+ * processed frame, e.g. to steer the pan/tilt head.
+ */
+public class FaceDetectionProcessor implements FrameProcessor {
+
+	/**
+	 * Told about the face being followed in each processed frame, on the detection thread.
+	 */
+	public interface Listener {
+		/**
+		 * @param face the MultiFaceTracker's target, or null if it wasn't seen in this frame. Reused by the next frame, so copy it to keep it.
+		 * @param captureNanos when the frame was captured, from System.nanoTime()
+		 */
+		void faceDetected(Rect face, int frameWidth, int frameHeight, long captureNanos);
+	}
+
+	private static final Logger log = Logger.getLogger(FaceDetectionProcessor.class);
+
+	private final FaceDetector faceDetector;
+	private final MultiFaceTracker faceTracker = new MultiFaceTracker();
+	private final PipelineStats stats;
+	private volatile QualityGovernor governor = null;
+	private QualityGovernor appliedGovernor = null;
+	private volatile Listener listener = null;
+
+	/**
+	 * @param faceDetector released when the processor is closed
+	 * @param stats records detection time and capture to result latency for each processed frame, or null
+	 */
+	public FaceDetectionProcessor(FaceDetector faceDetector, PipelineStats stats) {
+		this.faceDetector = faceDetector;
+		this.stats = stats;
+	}
+
+	@Override
+	public boolean process(Frame frame) {
+		if(governor != appliedGovernor) {
+			appliedGovernor = governor;
+			if(governor != null) {
+				governor.preloadClassifiers(); // Now, rather than stalling on a cascade load when the level changes
+				governor.apply(faceDetector);
+			}
+		}
+		if(governor != null && !governor.shouldProcess()) {
+			frame.detections.copyFrom(faceDetector, faceTracker); // Skipped to stay within budget - show where the faces were last time
+			return true;
+		}
+		long detectionStart = System.nanoTime();
+		// The following line causes crash on exit for some reason
+		int faceCount = faceDetector.detect(frame.image);
+		long detectionEnd = System.nanoTime();
+		if(stats != null)
+			stats.frameProcessed(detectionEnd - detectionStart, detectionEnd - frame.captureNanos);
+		if(governor != null && governor.frameProcessed(detectionEnd - detectionStart))
+			governor.apply(faceDetector);
+		if(faceCount > 0 && log.isDebugEnabled()) {
+			Rect biggestFaceRect = faceDetector.getBiggestFace();
+			log.debug("Detected face at: " + biggestFaceRect.x + "x" + biggestFaceRect.y + "y" + biggestFaceRect.width + "w" + biggestFaceRect.height + "h");
+		}
+		faceTracker.update(faceDetector);
+		frame.detections.copyFrom(faceDetector, faceTracker);
+		if(listener != null)
+			listener.faceDetected(faceTracker.getTargetFace(), frame.image.cols(), frame.image.rows(), frame.captureNanos);
+		return true;
+	}
+
+	/**
+	 * Releases the detector, and hands back any cascades the governor borrowed.
+	 */
+	@Override
+	public void close() {
+		faceDetector.release();
+		if(governor != null)
+			governor.release();
+	}
+
+	@Override
+	public String getName() {
+		return "detect";
+	}
+
+	public FaceDetector getFaceDetector() {
+		return faceDetector;
+	}
+
+	public MultiFaceTracker getFaceTracker() {
+		return faceTracker;
+	}
+
+	/**
+	 * Lets the governor pick the cascade, detection scale and frame skipping. Takes effect from the next frame.
+	 * 
+	 * @throws IllegalArgumentException if the detector doesn't use the plain CascadeDetectionEngine, the only one that can switch cascade
+	 */
+	public void setQualityGovernor(QualityGovernor governor) {
+		if(governor != null && !(faceDetector.getEngine() instanceof CascadeDetectionEngine))
+			throw new IllegalArgumentException("The quality governor switches cascades, which " + faceDetector.getEngine().getClass().getSimpleName() + " can't do");
+		this.governor = governor;
+	}
+
+	public QualityGovernor getQualityGovernor() {
+		return governor;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+}
@@ -0,0 +1,510 @@
+package org.amplexus.opencv.app;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.objdetect.CascadeClassifier;
+
+/**
+ * Runs a cascade classifier over frames and keeps the results in buffers that are reused from one
+ * frame to the next.
+ * 
+ * The obvious way to do this - detectMultiScale into a new MatOfRect, toArray() it and draw each
+ * Rect with new Points - allocates several Java objects and a native Mat per frame, none of which
+ * were ever released. Here the MatOfRect, the int buffer it is copied into, the Rects and the
+ * drawing Points all live as long as the detector, so steady state detection with the plain
+ * CascadeDetectionEngine allocates nothing (apart from a Mat header for the search window in region
+ * of interest tracking mode). Parallel engines allocate a little per frame to hand out their work.
+ * 
+ * Not thread safe - use one FaceDetector per detection thread.
+ */
+public class FaceDetector {
+
+	public static final String LBP_CASCADE = "/lbpcascade_frontalface.xml";						// Least expensive / least accurate
+	public static final String HAAR_ALT_CASCADE = "/haarcascade_frontalface_alt.xml";			// More expensive / more accurate
+	public static final String HAAR_DEFAULT_CASCADE = "/haarcascade_frontalface_default.xml";	// Most expensive / most accurate
+
+	static final Scalar FACE_COLOUR = new Scalar(0, 255, 0);
+	static final Scalar TRACKED_FACE_COLOUR = new Scalar(0, 255, 255);	// Yellow for faces followed by the tracker rather than detected
+	static final int INITIAL_CAPACITY = 16;
+	static final double SCALE_FACTOR = 1.1;			// detectMultiScale's defaults, for when we need the long form
+	static final int MIN_NEIGHBOURS = 3;
+	static final double DEFAULT_SEARCH_WINDOW_SCALE = 2.0;
+	static final int DEFAULT_FULL_SCAN_INTERVAL = 10;
+	static final int DEFAULT_DETECTION_INTERVAL = 1;
+	static final double MIN_FACE_SIZE_RATIO = 0.6;	// When tracking, only look for faces at least this fraction of the last one's size
+	static final int MAX_STATIC_FRAMES = 30;		// With a motion gate, detect at least this often even if nothing moves
+	static final double MAX_PARTIAL_CHANGE = 0.5;	// With a motion gate, search the whole frame if more than this fraction of it changed
+
+	private DetectionEngine engine;
+	private DetectionPreprocessor preprocessor;
+	private final MatOfRect detectedFaces = new MatOfRect();
+	private int[] rectBuffer = new int[0];
+	private Rect[] faces = new Rect[0];
+	private int faceCount = 0;
+	private int biggestFace = -1;
+	private int capacityGrowths = 0;			// How many times the result buffers had to grow - should stop once warmed up
+	private boolean regionOfInterestTracking = false;
+	private double searchWindowScale = DEFAULT_SEARCH_WINDOW_SCALE;
+	private int fullScanInterval = DEFAULT_FULL_SCAN_INTERVAL;
+	private boolean hasLastFace = false;
+	private final Rect lastFace = new Rect();
+	private final Rect searchWindow = new Rect();
+	private final Size minFaceSize = new Size();
+	private final Size maxFaceSize = new Size();
+	private int framesSinceFullScan = 0;
+	private int detectionInterval = DEFAULT_DETECTION_INTERVAL;
+	private double minTrackerConfidence = TemplateTracker.DEFAULT_MIN_CONFIDENCE;
+	private final TemplateTracker templateTracker = new TemplateTracker();
+	private final Rect trackerStart = new Rect();
+	private int framesSinceDetection = 0;
+	private boolean lastResultTracked = false;
+	private long trackedCount = 0;
+	private long fullScanCount = 0;
+	private long regionScanCount = 0;
+	private MotionGate motionGate = null;
+	private boolean hasDetected = false;		// Whether there's a cascade result the motion gate can reuse
+	private int staticFrames = 0;
+	private long motionSkipCount = 0;
+	private long motionRegionScanCount = 0;
+	private final Point topLeft = new Point();
+	private final Point bottomRight = new Point();
+
+	/**
+	 * Loads a new copy of a cascade from the classpath, e.g. "/lbpcascade_frontalface.xml". Prefer
+	 * CascadeClassifierPool, which only parses each cascade once and warms it up.
+	 */
+	public static CascadeClassifier loadClassifier(String resourceName) {
+		CascadeClassifier classifier = new CascadeClassifier(CascadeClassifierPool.getShared().getCascadeFile(resourceName).getPath());
+		if(classifier.empty())
+			throw new IllegalStateException("Couldn't load cascade " + resourceName);
+		return classifier;
+	}
+
+	/**
+	 * Runs the classifier once over a blank frame so its lazily built internal structures (image
+	 * pyramid buffers, integral images etc.) are in place before the first real frame arrives.
+	 */
+	public static void warmUp(CascadeClassifier classifier, int width, int height) {
+		Mat blank = Mat.zeros(height, width, CvType.CV_8UC1);
+		MatOfRect faces = new MatOfRect();
+		classifier.detectMultiScale(blank, faces);
+		faces.release();
+		blank.release();
+	}
+
+	public FaceDetector(CascadeClassifier classifier) {
+		this(classifier, new DetectionPreprocessor());
+	}
+
+	public FaceDetector(CascadeClassifier classifier, DetectionPreprocessor preprocessor) {
+		this(new CascadeDetectionEngine(classifier), preprocessor);
+	}
+
+	/**
+	 * @param engine runs the cascade - e.g. a TiledDetectionEngine to spread each detection across cores
+	 */
+	public FaceDetector(DetectionEngine engine, DetectionPreprocessor preprocessor) {
+		this.engine = engine;
+		this.preprocessor = preprocessor;
+		ensureCapacity(INITIAL_CAPACITY);
+		capacityGrowths = 0;
+	}
+
+	/**
+	 * Detects faces in the image, replacing the results of the previous call. The image is shrunk by
+	 * the preprocessor first, but the results are always in the image's own coordinates.
+	 * 
+	 * In region of interest tracking mode, once a face has been found only a window around it is
+	 * searched, and only for faces of roughly its size. If the face isn't in the window we fall back
+	 * to searching the whole frame straight away, and the whole frame is searched every
+	 * fullScanInterval frames regardless so that new faces are still noticed.
+	 * 
+	 * With a detectionInterval of K > 1 the cascade only runs every K frames. In between, the biggest
+	 * face is followed by a TemplateTracker, and the cascade runs early if the tracker's confidence
+	 * drops below minTrackerConfidence. A tracked frame reports exactly one face - the one being followed.
+	 * 
+	 * With a MotionGate, a frame where nothing has changed since detection last ran keeps the previous
+	 * result without running anything (for up to MAX_STATIC_FRAMES frames in a row). If only part of the
+	 * frame has changed, only that part is searched, and the previous faces elsewhere are kept.
+	 * 
+	 * @return the number of faces found
+	 */
+	public int detect(Mat image) {
+		Mat detectionImage = preprocessor.prepare(image);
+		double scale = preprocessor.getScale();
+		if(motionGate != null) {
+			boolean moved = motionGate.update(detectionImage);
+			if(!moved && hasDetected && staticFrames < MAX_STATIC_FRAMES) {
+				staticFrames++;
+				motionSkipCount++;
+				return faceCount;
+			}
+			staticFrames = 0;
+			motionGate.updateReference(); // Detection runs on this one - later frames are compared with it
+		}
+		lastResultTracked = false;
+		if(detectionInterval > 1 && framesSinceDetection < detectionInterval && templateTracker.isTracking()) {
+			framesSinceDetection++;
+			if(templateTracker.update(detectionImage) >= minTrackerConfidence) {
+				trackedCount++;
+				lastResultTracked = true;
+				Rect tracked = templateTracker.getPosition();
+				ensureCapacity(1);
+				faceCount = 1;
+				biggestFace = 0;
+				faces[0].x = (int) Math.round(tracked.x * scale);
+				faces[0].y = (int) Math.round(tracked.y * scale);
+				faces[0].width = (int) Math.round(tracked.width * scale);
+				faces[0].height = (int) Math.round(tracked.height * scale);
+				rememberBiggestFace();
+				return faceCount;
+			}
+			// Tracker has lost confidence - fall through and run the cascade again
+		}
+		framesSinceDetection = 1;
+		cascadeDetect(detectionImage, scale);
+		templateTracker.stop();
+		if(detectionInterval > 1 && hasLastFace) {
+			trackerStart.x = (int) (lastFace.x / scale);
+			trackerStart.y = (int) (lastFace.y / scale);
+			trackerStart.width = (int) (lastFace.width / scale);
+			trackerStart.height = (int) (lastFace.height / scale);
+			templateTracker.start(detectionImage, trackerStart);
+		}
+		return faceCount;
+	}
+
+	/**
+	 * Runs the cascade over the shrunk detection image - around the last face in region of interest
+	 * tracking mode, over the part that moved if there's a motion gate, or over the whole thing.
+	 */
+	private int cascadeDetect(Mat detectionImage, double scale) {
+		hasDetected = true;
+		if(regionOfInterestTracking && hasLastFace && framesSinceFullScan < fullScanInterval) {
+			framesSinceFullScan++;
+			regionScanCount++;
+			updateSearchWindow(detectionImage, scale);
+			Mat window = detectionImage.submat(searchWindow);
+			minFaceSize.width = minFaceSize.height = Math.min(lastFace.width, lastFace.height) / scale * MIN_FACE_SIZE_RATIO;
+			maxFaceSize.width = searchWindow.width;
+			maxFaceSize.height = searchWindow.height;
+			engine.detectMultiScale(window, detectedFaces, SCALE_FACTOR, MIN_NEIGHBOURS, 0, minFaceSize, maxFaceSize);
+			window.release();
+			if(readDetectedFaces(scale, searchWindow.x, searchWindow.y, 0) > 0) {
+				rememberBiggestFace();
+				return faceCount;
+			}
+			// Lost the face - fall through to a full frame search
+		} else if(motionGate != null && motionGate.getChangedFraction() > 0 && motionGate.getChangedFraction() < MAX_PARTIAL_CHANGE && framesSinceFullScan < fullScanInterval) {
+			framesSinceFullScan++;
+			motionRegionScanCount++;
+			Rect changed = motionGate.getChangedBounds();
+			int kept = keepFacesOutside(changed, scale);
+			Mat window = detectionImage.submat(changed);
+			engine.detectMultiScale(window, detectedFaces);
+			window.release();
+			readDetectedFaces(scale, changed.x, changed.y, kept);
+			rememberBiggestFace();
+			return faceCount;
+		}
+		engine.detectMultiScale(detectionImage, detectedFaces); // As per http://en.wikipedia.org/wiki/Viola-Jones_object_detection_framework
+		fullScanCount++;
+		framesSinceFullScan = 0;
+		readDetectedFaces(scale, 0, 0, 0);
+		rememberBiggestFace();
+		return faceCount;
+	}
+
+	/**
+	 * Copies the detected faces out of the MatOfRect into our reusable Rects after the first keptCount,
+	 * translating them from the searched (shrunk, possibly windowed) image back to frame coordinates,
+	 * and picks the biggest of all of them.
+	 * 
+	 * @return how many faces were read - not counting the kept ones
+	 */
+	private int readDetectedFaces(double scale, int offsetX, int offsetY, int keptCount) {
+		int detectedCount = detectedFaces.rows();
+		faceCount = keptCount + detectedCount;
+		biggestFace = -1;
+		if(faceCount == 0)
+			return 0;
+		ensureCapacity(faceCount);
+		if(detectedCount > 0)
+			detectedFaces.get(0, 0, rectBuffer);
+		for(int i = 0; i < detectedCount; i++) {
+			Rect face = faces[keptCount + i];
+			face.x = (int) Math.round((rectBuffer[i * 4] + offsetX) * scale);
+			face.y = (int) Math.round((rectBuffer[i * 4 + 1] + offsetY) * scale);
+			face.width = (int) Math.round(rectBuffer[i * 4 + 2] * scale);
+			face.height = (int) Math.round(rectBuffer[i * 4 + 3] * scale);
+		}
+		// determine biggest face - that will be the one we centre the camera on using the pan/tilt servos
+		double biggestArea = 0;
+		for(int i = 0; i < faceCount; i++) {
+			if(faces[i].area() > biggestArea) {
+				biggestArea = faces[i].area();
+				biggestFace = i;
+			}
+		}
+		return detectedCount;
+	}
+
+	/**
+	 * Moves the faces from the last result that lie wholly outside the region (in detection image
+	 * coordinates) to the front of the list, so they survive a search of just that region.
+	 * 
+	 * @return how many faces were kept
+	 */
+	private int keepFacesOutside(Rect region, double scale) {
+		double left = region.x * scale;
+		double top = region.y * scale;
+		double right = (region.x + region.width) * scale;
+		double bottom = (region.y + region.height) * scale;
+		int kept = 0;
+		for(int i = 0; i < faceCount; i++) {
+			Rect face = faces[i];
+			boolean outside = face.x + face.width <= left || face.x >= right || face.y + face.height <= top || face.y >= bottom;
+			if(outside) {
+				faces[i] = faces[kept];
+				faces[kept++] = face;
+			}
+		}
+		return kept;
+	}
+
+	private void rememberBiggestFace() {
+		Rect face = getBiggestFace();
+		hasLastFace = face != null;
+		if(hasLastFace) {
+			lastFace.x = face.x;
+			lastFace.y = face.y;
+			lastFace.width = face.width;
+			lastFace.height = face.height;
+		}
+	}
+
+	/**
+	 * Works out the window to search in the shrunk detection image: the last face grown by
+	 * searchWindowScale about its centre, clamped to the image.
+	 */
+	private void updateSearchWindow(Mat detectionImage, double scale) {
+		double centreX = (lastFace.x + lastFace.width / 2.0) / scale;
+		double centreY = (lastFace.y + lastFace.height / 2.0) / scale;
+		double halfWidth = lastFace.width * searchWindowScale / scale / 2;
+		double halfHeight = lastFace.height * searchWindowScale / scale / 2;
+		int left = Math.max(0, (int) (centreX - halfWidth));
+		int top = Math.max(0, (int) (centreY - halfHeight));
+		int right = Math.min(detectionImage.cols(), (int) Math.ceil(centreX + halfWidth));
+		int bottom = Math.min(detectionImage.rows(), (int) Math.ceil(centreY + halfHeight));
+		searchWindow.x = left;
+		searchWindow.y = top;
+		searchWindow.width = Math.max(1, right - left);
+		searchWindow.height = Math.max(1, bottom - top);
+	}
+
+	/**
+	 * @param detectionInterval run the cascade every this many frames, tracking the face in between. 1 runs it every frame.
+	 */
+	public void setDetectionInterval(int detectionInterval) {
+		this.detectionInterval = Math.max(1, detectionInterval);
+	}
+
+	public int getDetectionInterval() {
+		return detectionInterval;
+	}
+
+	/**
+	 * @param minTrackerConfidence re-run the cascade if the tracker's match score falls below this (0 to 1)
+	 */
+	public void setMinTrackerConfidence(double minTrackerConfidence) {
+		this.minTrackerConfidence = minTrackerConfidence;
+	}
+
+	/**
+	 * @return true if the last result came from the tracker rather than the cascade
+	 */
+	public boolean isLastResultTracked() {
+		return lastResultTracked;
+	}
+
+	/**
+	 * @return how many frames were handled by the tracker instead of the cascade
+	 */
+	public long getTrackedCount() {
+		return trackedCount;
+	}
+
+	/**
+	 * Turns region of interest tracking on or off. Turning it off (or on) forces a full frame search next time.
+	 */
+	public void setRegionOfInterestTracking(boolean regionOfInterestTracking) {
+		this.regionOfInterestTracking = regionOfInterestTracking;
+		hasLastFace = false;
+	}
+
+	public boolean isRegionOfInterestTracking() {
+		return regionOfInterestTracking;
+	}
+
+	/**
+	 * @param searchWindowScale how much bigger than the last face the search window is, e.g. 2 for twice the width and height
+	 */
+	public void setSearchWindowScale(double searchWindowScale) {
+		this.searchWindowScale = searchWindowScale;
+	}
+
+	/**
+	 * @param fullScanInterval search the whole frame at least once every this many frames
+	 */
+	public void setFullScanInterval(int fullScanInterval) {
+		this.fullScanInterval = fullScanInterval;
+	}
+
+	/**
+	 * @return how many detections searched the whole frame
+	 */
+	public long getFullScanCount() {
+		return fullScanCount;
+	}
+
+	/**
+	 * @return how many detections searched only a window around the last face
+	 */
+	public long getRegionScanCount() {
+		return regionScanCount;
+	}
+
+	/**
+	 * Skips detection on frames where nothing has moved, and restricts it to the part that has on frames
+	 * where only some of it has. Null turns motion gating off.
+	 */
+	public void setMotionGate(MotionGate motionGate) {
+		if(this.motionGate != null)
+			this.motionGate.release();
+		this.motionGate = motionGate;
+		hasDetected = false;
+	}
+
+	public MotionGate getMotionGate() {
+		return motionGate;
+	}
+
+	/**
+	 * @return how many frames reused the previous result because nothing had moved
+	 */
+	public long getMotionSkipCount() {
+		return motionSkipCount;
+	}
+
+	/**
+	 * @return how many detections only searched the part of the frame that had moved
+	 */
+	public long getMotionRegionScanCount() {
+		return motionRegionScanCount;
+	}
+
+	public int getFaceCount() {
+		return faceCount;
+	}
+
+	/**
+	 * @return the i'th face from the last detection. The Rect is reused by the next detection, so copy it if you need to keep it.
+	 */
+	public Rect getFace(int i) {
+		return faces[i];
+	}
+
+	/**
+	 * @return the biggest face from the last detection, or null if there were none. Reused by the next detection.
+	 */
+	public Rect getBiggestFace() {
+		return biggestFace < 0 ? null : faces[biggestFace];
+	}
+
+	/**
+	 * Stores the centre of the biggest face in the supplied point.
+	 * 
+	 * @return false (leaving the point untouched) if no face was detected
+	 */
+	public boolean getCentreOfBiggestFace(Point centre) {
+		Rect face = getBiggestFace();
+		if(face == null)
+			return false;
+		centre.x = face.x + face.width / 2;
+		centre.y = face.y + face.height / 2;
+		return true;
+	}
+
+	/**
+	 * Draws a box around each face from the last detection.
+	 */
+	public void drawFaces(Mat image) {
+		for(int i = 0; i < faceCount; i++) {
+			Rect face = faces[i];
+			topLeft.x = face.x;
+			topLeft.y = face.y;
+			bottomRight.x = face.x + face.width;
+			bottomRight.y = face.y + face.height;
+			Core.rectangle(image, topLeft, bottomRight, lastResultTracked ? TRACKED_FACE_COLOUR : FACE_COLOUR);
+		}
+	}
+
+	/**
+	 * Switches to a different cascade from the next detection. Anything being tracked is found afresh.
+	 * Only the plain CascadeDetectionEngine can switch cascade - other engines keep the one they were built with.
+	 */
+	public void setClassifier(CascadeClassifier classifier) {
+		if(!(engine instanceof CascadeDetectionEngine))
+			return;
+		CascadeDetectionEngine cascadeEngine = (CascadeDetectionEngine) engine;
+		if(classifier == cascadeEngine.getClassifier())
+			return;
+		cascadeEngine.setClassifier(classifier);
+		hasLastFace = false;
+		hasDetected = false;
+		templateTracker.stop();
+	}
+
+	public DetectionEngine getEngine() {
+		return engine;
+	}
+
+	public DetectionPreprocessor getPreprocessor() {
+		return preprocessor;
+	}
+
+	public int getCapacityGrowths() {
+		return capacityGrowths;
+	}
+
+	/**
+	 * Frees the native result and preprocessing buffers, and shuts down the engine.
+	 */
+	public void release() {
+		engine.release();
+		detectedFaces.release();
+		preprocessor.release();
+		templateTracker.release();
+		if(motionGate != null)
+			motionGate.release();
+	}
+
+	private void ensureCapacity(int capacity) {
+		if(faces.length >= capacity)
+			return;
+		int newCapacity = Math.max(capacity, faces.length * 2);
+		Rect[] newFaces = new Rect[newCapacity];
+		System.arraycopy(faces, 0, newFaces, 0, faces.length);
+		for(int i = faces.length; i < newCapacity; i++)
+			newFaces[i] = new Rect();
+		faces = newFaces;
+		rectBuffer = new int[newCapacity * 4];
+		capacityGrowths++;
+	}
+}
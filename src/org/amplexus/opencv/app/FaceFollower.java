@@ -0,0 +1,293 @@
+package org.amplexus.opencv.app;
+
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+/**
+ * Decides which way the pan/tilt head should move to keep a face centred, from Kalman filtered
+ * positions rather than raw detections.
+ * 
+ * Reacting to each raw detection meant a face sitting near the edge of the dead zone jittered in and
+ * out of it, and every crossing cost a command over the XBee link. Here the smoothed centre has to
+ * be outside the dead zone, and still be outside it LOOKAHEAD_SECONDS from now at its current speed,
+ * so a face already drifting back towards the middle doesn't trigger a move either. Short detection
+ * dropouts are bridged by the filter's prediction.
+ * 
+ * With ServoAxes set the follower aims the head with absolute CMD_PAN_TO / CMD_TILT_TO moves worked
+ * out by each axis's PID controller instead, which centres a face in a move or two rather than one
+ * fixed step per command. The axes' dead bands then take the place of the dead zone.
+ * 
+ * Absolute moves aim where the face will be when the head gets the command, not where it was in
+ * the frame: the filter's velocity carries the face forward by the frame's age (capture, detection
+ * and queueing) plus the time commands are taking to be delivered, as measured from the XBee's
+ * status responses. The lead is capped at MAX_LEAD_SECONDS, and how far it carries the face at
+ * MAX_LEAD_FRACTION of the frame, so a bad velocity can't fling the head.
+ * 
+ * After a move the whole picture slides as the head turns, which the filter would take for the face
+ * moving. So while an axis is settling, and on the first detection after, the filter's centre is
+ * started over from the detection instead, and its velocity only comes from frames taken with the
+ * head still.
+ */
+public class FaceFollower implements PanTiltCommander.Listener {
+
+	public static final int NONE = -1;
+	static final double DEAD_ZONE = 0.1;			// Don't move while the face is within this fraction of the frame from the centre
+	static final double LOOKAHEAD_SECONDS = 0.2;
+	static final double MAX_LEAD_SECONDS = 0.5;
+	static final double MAX_LEAD_FRACTION = 0.25;	// The furthest the lead may carry the face, as a fraction of the frame
+	static final int PAN_DIRECTION = -1;			// A face right of centre pans left, as with the stepping commands - assumed to lower the angle
+	static final int TILT_DIRECTION = -1;			// A face below centre tilts down - likewise
+
+	private final FaceKalmanFilter filter;
+	private final Point centre = new Point();
+	private final Point predicted = new Point();
+	private int panCommand = NONE;
+	private int tiltCommand = NONE;
+	private ServoAxis panAxis = null;
+	private ServoAxis tiltAxis = null;
+	private int panAngle = NONE;
+	private int tiltAngle = NONE;
+	private CommandLatency actuationLatency = XBeeCommunicatorTask.getDeliveryLatency();
+	private double leadSeconds = 0;
+	private boolean cameraMoved = false;			// The head has moved since the filter's centre was last started over
+	private long updates = 0;
+	private long moves = 0;
+
+	public FaceFollower() {
+		this(new FaceKalmanFilter());
+	}
+
+	public FaceFollower(FaceKalmanFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Switches to absolute moves. Pass nulls to go back to stepping.
+	 */
+	public void setServoAxes(ServoAxis panAxis, ServoAxis tiltAxis) {
+		this.panAxis = panAxis;
+		this.tiltAxis = tiltAxis;
+	}
+
+	/**
+	 * Feeds in one processed frame and works out the commands for it.
+	 * 
+	 * @param face the face to follow, or null if none was detected in this frame
+	 * @param captureNanos when the frame was captured, from System.nanoTime()
+	 * @return true if there is a face being followed, detected or predicted
+	 */
+	public boolean update(Rect face, int frameWidth, int frameHeight, long captureNanos) {
+		updates++;
+		panCommand = tiltCommand = NONE;
+		panAngle = tiltAngle = NONE;
+		boolean settling = panAxis != null && (panAxis.isSettling(captureNanos) || tiltAxis.isSettling(captureNanos));
+		if(settling)
+			cameraMoved = true;
+		if(face != null && cameraMoved) {
+			filter.restartCentre(face, captureNanos);
+			cameraMoved = settling;
+		} else if(face != null) {
+			filter.update(face, captureNanos);
+		} else if(!filter.predict(captureNanos)) {
+			if(panAxis != null) {
+				panAxis.reset();
+				tiltAxis.reset();
+			}
+			return false;
+		}
+		filter.getCentre(centre);
+		if(panAxis != null) {
+			aim(frameWidth, frameHeight, captureNanos);
+			return true;
+		}
+		filter.getPredictedCentre(LOOKAHEAD_SECONDS, predicted);
+		double deadZoneX = frameWidth * DEAD_ZONE;
+		double deadZoneY = frameHeight * DEAD_ZONE;
+		double deltaX = centre.x - frameWidth / 2.0;
+		double deltaY = centre.y - frameHeight / 2.0;
+		double predictedDeltaX = predicted.x - frameWidth / 2.0;
+		double predictedDeltaY = predicted.y - frameHeight / 2.0;
+		if(deltaX > deadZoneX && predictedDeltaX > deadZoneX)
+			panCommand = XBeeCommunicatorTask.CMD_PAN_LEFT;
+		else if(deltaX < -deadZoneX && predictedDeltaX < -deadZoneX)
+			panCommand = XBeeCommunicatorTask.CMD_PAN_RIGHT;
+		if(deltaY > deadZoneY && predictedDeltaY > deadZoneY)
+			tiltCommand = XBeeCommunicatorTask.CMD_TILT_DOWN;
+		else if(deltaY < -deadZoneY && predictedDeltaY < -deadZoneY)
+			tiltCommand = XBeeCommunicatorTask.CMD_TILT_UP;
+		if(panCommand != NONE || tiltCommand != NONE)
+			moves++;
+		return true;
+	}
+
+	private void aim(int frameWidth, int frameHeight, long captureNanos) {
+		leadSeconds = Math.min(MAX_LEAD_SECONDS, (System.nanoTime() - captureNanos) / 1e9 + actuationLatency.getAverageSeconds());
+		filter.getPredictedCentre(leadSeconds, predicted);
+		predicted.x = centre.x + clamp(predicted.x - centre.x, frameWidth * MAX_LEAD_FRACTION);
+		predicted.y = centre.y + clamp(predicted.y - centre.y, frameHeight * MAX_LEAD_FRACTION);
+		panAngle = panAxis.aim(predicted.x - frameWidth / 2.0, frameWidth, captureNanos);
+		tiltAngle = tiltAxis.aim(predicted.y - frameHeight / 2.0, frameHeight, captureNanos);
+		if(panAngle != NONE)
+			panCommand = panAxis.getCommand();
+		if(tiltAngle != NONE)
+			tiltCommand = tiltAxis.getCommand();
+		if(panCommand != NONE || tiltCommand != NONE)
+			moves++;
+	}
+
+	private static double clamp(double value, double limit) {
+		return Math.max(-limit, Math.min(limit, value));
+	}
+
+	/**
+	 * Posts this frame's moves to the commander, which sends both axes in one combined command as soon
+	 * as the link is free. A move still waiting to go out is replaced. The axes only take up their new
+	 * positions when the commander reports the move acknowledged, so the follower must be its listener.
+	 * 
+	 * @param stepSpeed the speed for stepping moves
+	 * @return false if neither axis needs to move
+	 */
+	public boolean postMoves(PanTiltCommander commander, int stepSpeed) {
+		if(panCommand == NONE && tiltCommand == NONE)
+			return false;
+		if(panAxis == null)
+			commander.step(panCommand, tiltCommand, stepSpeed);
+		else {
+			if(panAngle != NONE)
+				panAxis.posted(panAngle);
+			if(tiltAngle != NONE)
+				tiltAxis.posted(tiltAngle);
+			commander.moveTo(panAngle, tiltAngle);
+		}
+		return true;
+	}
+
+	/**
+	 * Moves the axes to where the head has actually been sent, and starts them settling. Called on the commander's thread.
+	 */
+	@Override
+	public void moveSent(int panAngle, int tiltAngle, long sentNanos) {
+		if(panAxis == null)
+			return;
+		if(panAngle != NONE)
+			panAxis.moved(panAngle, sentNanos);
+		if(tiltAngle != NONE)
+			tiltAxis.moved(tiltAngle, sentNanos);
+	}
+
+	/**
+	 * Lets the axes act on the error fully again after a move that didn't get through. Called on the commander's thread.
+	 */
+	@Override
+	public void moveFailed(int panAngle, int tiltAngle) {
+		if(panAxis == null)
+			return;
+		if(panAngle != NONE)
+			panAxis.moveFailed(panAngle);
+		if(tiltAngle != NONE)
+			tiltAxis.moveFailed(tiltAngle);
+	}
+
+	/**
+	 * @return a description of this frame's moves, for the log
+	 */
+	public String describeMoves() {
+		if(panAxis != null)
+			return "Moving to pan " + (panAngle == NONE ? "-" : String.valueOf(panAngle)) + ", tilt " + (tiltAngle == NONE ? "-" : String.valueOf(tiltAngle));
+		return "Stepping " + (panCommand == NONE ? "" : XBeeCommunicatorTask.stringifiedCommandName(panCommand)) + (panCommand != NONE && tiltCommand != NONE ? " and " : "")
+				+ (tiltCommand == NONE ? "" : XBeeCommunicatorTask.stringifiedCommandName(tiltCommand));
+	}
+
+	/**
+	 * @return CMD_PAN_LEFT or CMD_PAN_RIGHT, or CMD_PAN_TO with ServoAxes, or NONE to stay put
+	 */
+	public int getPanCommand() {
+		return panCommand;
+	}
+
+	/**
+	 * @return CMD_TILT_UP or CMD_TILT_DOWN, or CMD_TILT_TO with ServoAxes, or NONE to stay put
+	 */
+	public int getTiltCommand() {
+		return tiltCommand;
+	}
+
+	/**
+	 * @return the angle to send with CMD_PAN_TO
+	 */
+	public int getPanAngle() {
+		return panAngle;
+	}
+
+	/**
+	 * @return the angle to send with CMD_TILT_TO
+	 */
+	public int getTiltAngle() {
+		return tiltAngle;
+	}
+
+	/**
+	 * Sets up absolute moves from the command line: --kp, --ki, --kd, --dead-band and --max-step (in
+	 * degrees), --settle-ms, --pan-fov and --tilt-fov, and --invert-pan / --invert-tilt if the head
+	 * turns away from the face.
+	 */
+	public void useServoAxes(String[] args) {
+		double kp = CommandLineOptions.getDouble(args, "kp", ServoAxis.DEFAULT_KP);
+		double ki = CommandLineOptions.getDouble(args, "ki", ServoAxis.DEFAULT_KI);
+		double kd = CommandLineOptions.getDouble(args, "kd", ServoAxis.DEFAULT_KD);
+		double maxStep = CommandLineOptions.getDouble(args, "max-step", ServoAxis.DEFAULT_MAX_STEP_DEGREES);
+		double deadBand = CommandLineOptions.getDouble(args, "dead-band", ServoAxis.DEFAULT_DEAD_BAND_DEGREES);
+		long settleMillis = CommandLineOptions.getInt(args, "settle-ms", (int) ServoAxis.DEFAULT_SETTLE_MILLIS);
+		setServoAxes(
+				new ServoAxis(XBeeCommunicatorTask.CMD_PAN_TO, CommandLineOptions.getDouble(args, "pan-fov", ServoAxis.PAN_FIELD_OF_VIEW_DEGREES),
+						CommandLineOptions.hasFlag(args, "invert-pan") ? -PAN_DIRECTION : PAN_DIRECTION, new PidController(kp, ki, kd, -maxStep, maxStep),
+						deadBand, ServoAxis.DEFAULT_MIN_ANGLE, ServoAxis.DEFAULT_MAX_ANGLE, settleMillis),
+				new ServoAxis(XBeeCommunicatorTask.CMD_TILT_TO, CommandLineOptions.getDouble(args, "tilt-fov", ServoAxis.TILT_FIELD_OF_VIEW_DEGREES),
+						CommandLineOptions.hasFlag(args, "invert-tilt") ? -TILT_DIRECTION : TILT_DIRECTION, new PidController(kp, ki, kd, -maxStep, maxStep),
+						deadBand, ServoAxis.DEFAULT_MIN_ANGLE, ServoAxis.DEFAULT_MAX_ANGLE, settleMillis));
+	}
+
+	/**
+	 * @param actuationLatency how long commands take to reach the head - by default, as measured by XBeeCommunicatorTask
+	 */
+	public void setActuationLatency(CommandLatency actuationLatency) {
+		this.actuationLatency = actuationLatency;
+	}
+
+	/**
+	 * @return how far ahead the last absolute move aimed, in milliseconds
+	 */
+	public double getLeadMillis() {
+		return leadSeconds * 1000;
+	}
+
+	public ServoAxis getPanAxis() {
+		return panAxis;
+	}
+
+	public ServoAxis getTiltAxis() {
+		return tiltAxis;
+	}
+
+	/**
+	 * @return the smoothed centre of the face, valid while update() returns true. Reused by the next update.
+	 */
+	public Point getCentre() {
+		return centre;
+	}
+
+	public FaceKalmanFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * @return how many frames asked for a move, out of getUpdateCount()
+	 */
+	public long getMoveCount() {
+		return moves;
+	}
+
+	public long getUpdateCount() {
+		return updates;
+	}
+}
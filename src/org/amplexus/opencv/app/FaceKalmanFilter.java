@@ -0,0 +1,228 @@
+package org.amplexus.opencv.app;
+
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+/**
+ * Smooths a face's centre and size with a constant velocity Kalman filter, giving steadier
+ * positions than the raw detections plus an estimate of how fast the face is moving.
+ * 
+ * The state is centre x, centre y, width and height, each with a velocity. The four quantities
+ * move independently, so rather than one 8x8 filter (and org.opencv.video.KalmanFilter's Mat
+ * allocations on every call) this runs four 2-state filters in plain doubles. That is the same
+ * filter, since the covariance matrix would be block diagonal anyway. Time steps come from the
+ * frames' capture times, so dropped and skipped frames are handled properly.
+ * 
+ * When no face is detected the filter keeps predicting along the last velocity, bridging short
+ * dropouts, and gives up once it has gone maxCoastMillis without a detection.
+ */
+public class FaceKalmanFilter {
+
+	public static final double DEFAULT_ACCELERATION_NOISE = 400;	// Pixels/sec^2 - how abruptly we expect a face to change speed
+	public static final double DEFAULT_MEASUREMENT_NOISE = 6;		// Pixels - how much the detector's boxes jitter
+	public static final long DEFAULT_MAX_COAST_MILLIS = 500;
+
+	private final Axis x;
+	private final Axis y;
+	private final Axis width;
+	private final Axis height;
+	private final long maxCoastNanos;
+	private boolean tracking = false;
+	private long lastNanos = 0;
+	private long lastMeasurementNanos = 0;
+
+	public FaceKalmanFilter() {
+		this(DEFAULT_ACCELERATION_NOISE, DEFAULT_MEASUREMENT_NOISE, DEFAULT_MAX_COAST_MILLIS);
+	}
+
+	/**
+	 * @param accelerationNoise the standard deviation of the face's acceleration, in pixels/sec^2 - higher follows faster but smooths less
+	 * @param measurementNoise the standard deviation of the detector's error, in pixels
+	 * @param maxCoastMillis how long to keep predicting without a detection before giving up
+	 */
+	public FaceKalmanFilter(double accelerationNoise, double measurementNoise, long maxCoastMillis) {
+		x = new Axis(accelerationNoise, measurementNoise);
+		y = new Axis(accelerationNoise, measurementNoise);
+		width = new Axis(accelerationNoise, measurementNoise);
+		height = new Axis(accelerationNoise, measurementNoise);
+		maxCoastNanos = maxCoastMillis * 1000000L;
+	}
+
+	/**
+	 * Feeds in a detected face.
+	 * 
+	 * @param nanos when the frame was captured, from System.nanoTime()
+	 */
+	public void update(Rect face, long nanos) {
+		double centreX = face.x + face.width / 2.0;
+		double centreY = face.y + face.height / 2.0;
+		if(!tracking) {
+			x.start(centreX);
+			y.start(centreY);
+			width.start(face.width);
+			height.start(face.height);
+			tracking = true;
+		} else {
+			predictTo(nanos);
+			x.correct(centreX);
+			y.correct(centreY);
+			width.correct(face.width);
+			height.correct(face.height);
+		}
+		lastNanos = nanos;
+		lastMeasurementNanos = nanos;
+	}
+
+	/**
+	 * Feeds in a detected face after the camera itself has moved, starting the centre over from it
+	 * with no velocity - the face's jump across the picture says nothing about how the face is moving.
+	 * The size is filtered as usual.
+	 * 
+	 * @param nanos when the frame was captured, from System.nanoTime()
+	 */
+	public void restartCentre(Rect face, long nanos) {
+		if(!tracking) {
+			update(face, nanos);
+			return;
+		}
+		predictTo(nanos);
+		x.start(face.x + face.width / 2.0);
+		y.start(face.y + face.height / 2.0);
+		width.correct(face.width);
+		height.correct(face.height);
+		lastNanos = nanos;
+		lastMeasurementNanos = nanos;
+	}
+
+	/**
+	 * Moves the estimate on to a frame with no detection.
+	 * 
+	 * @return false if there's nothing to follow - never started, or it's been too long since the last detection
+	 */
+	public boolean predict(long nanos) {
+		if(!tracking)
+			return false;
+		if(nanos - lastMeasurementNanos > maxCoastNanos) {
+			tracking = false;
+			return false;
+		}
+		predictTo(nanos);
+		lastNanos = nanos;
+		return true;
+	}
+
+	private void predictTo(long nanos) {
+		double seconds = Math.max(0, nanos - lastNanos) / 1e9;
+		x.predict(seconds);
+		y.predict(seconds);
+		width.predict(seconds);
+		height.predict(seconds);
+	}
+
+	public boolean isTracking() {
+		return tracking;
+	}
+
+	/**
+	 * @return true if the last update was a prediction rather than a detection
+	 */
+	public boolean isCoasting() {
+		return tracking && lastNanos != lastMeasurementNanos;
+	}
+
+	public void reset() {
+		tracking = false;
+	}
+
+	public double getCentreX() {
+		return x.position;
+	}
+
+	public double getCentreY() {
+		return y.position;
+	}
+
+	public double getWidth() {
+		return width.position;
+	}
+
+	public double getHeight() {
+		return height.position;
+	}
+
+	/**
+	 * @return pixels/sec, positive to the right
+	 */
+	public double getVelocityX() {
+		return x.velocity;
+	}
+
+	/**
+	 * @return pixels/sec, positive downwards
+	 */
+	public double getVelocityY() {
+		return y.velocity;
+	}
+
+	public void getCentre(Point centre) {
+		centre.x = x.position;
+		centre.y = y.position;
+	}
+
+	/**
+	 * Where the centre will be in the given time if the face keeps moving as it is.
+	 */
+	public void getPredictedCentre(double seconds, Point centre) {
+		centre.x = x.position + x.velocity * seconds;
+		centre.y = y.position + y.velocity * seconds;
+	}
+
+	/**
+	 * One quantity and its rate of change, with their 2x2 covariance.
+	 */
+	private static class Axis {
+
+		private final double accelerationVariance;
+		private final double measurementVariance;
+		double position;
+		double velocity;
+		private double pp, pv, vv;	// Covariance: position/position, position/velocity, velocity/velocity
+
+		Axis(double accelerationNoise, double measurementNoise) {
+			this.accelerationVariance = accelerationNoise * accelerationNoise;
+			this.measurementVariance = measurementNoise * measurementNoise;
+		}
+
+		void start(double measured) {
+			position = measured;
+			velocity = 0;
+			pp = measurementVariance;
+			pv = 0;
+			vv = accelerationVariance;	// Don't know the speed yet - about a second's worth of acceleration
+		}
+
+		void predict(double dt) {
+			position += velocity * dt;
+			// P = F P F' + Q, with F = [1 dt; 0 1] and Q from white noise acceleration
+			double dt2 = dt * dt;
+			pp += 2 * dt * pv + dt2 * vv + accelerationVariance * dt2 * dt2 / 4;
+			pv += dt * vv + accelerationVariance * dt2 * dt / 2;
+			vv += accelerationVariance * dt2;
+		}
+
+		void correct(double measured) {
+			double innovation = measured - position;
+			double s = pp + measurementVariance;
+			double positionGain = pp / s;
+			double velocityGain = pv / s;
+			position += positionGain * innovation;
+			velocity += velocityGain * innovation;
+			double newPp = (1 - positionGain) * pp;
+			double newPv = (1 - positionGain) * pv;
+			double newVv = vv - velocityGain * pv;
+			pp = newPp;
+			pv = newPv;
+			vv = newVv;
+		}
+	}
+}
@@ -2,15 +2,18 @@ package org.amplexus.opencv.app;
 
 import java.awt.BorderLayout;
 import java.awt.Component;
-import java.awt.Dimension;
 import java.awt.Image;
 import java.awt.LayoutManager;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.swing.BoxLayout;
-import javax.swing.ImageIcon;
+import javax.swing.DefaultComboBoxModel;
 import javax.swing.JButton;
 import javax.swing.JComboBox;
 import javax.swing.JFrame;
@@ -19,22 +22,23 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JSlider;
 import javax.swing.JToggleButton;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 import org.opencv.core.Core;
-import org.opencv.core.Mat;
-import org.opencv.core.Point;
-import org.opencv.highgui.Highgui;
+import org.opencv.core.Rect;
 import org.opencv.highgui.VideoCapture;
-import org.opencv.objdetect.CascadeClassifier;
 
 /*
  * Detects faces in an image, draws boxes around them, and writes the results
  * to "faceDetection.png".
  * 
+ * With --headless, runs FaceTracker's headless mode instead of the GUI.
+ * 
  * To avoid errors when recycling VideoCapture connections:
  * 	export LD_PRELOAD=/usr/lib/x86_64-linux-gnu/libv4l/v4l1compat.so
  * 
@@ -50,14 +54,26 @@ public class FaceTracker2 {
 	// static final String CASCADE_CLASSIFIER_FILENAME = "/lbpcascade_frontalface.xml"; // Least expensive / least accurate
 	static final String CASCADE_CLASSIFIER_FILENAME = "/haarcascade_frontalface_alt.xml"; // More expensive / more accurate
 	// static final String CASCADE_CLASSIFIER_FILENAME = "/haarcascade_frontalface_default.xml";  // Most expensive / most accurate
+
+	static final int MAX_WEBCAMS = 4;							// Device indexes 0..MAX_WEBCAMS-1 are probed at startup
+	static final long WEBCAM_PROBE_TIMEOUT_MILLIS = 5000;
+	static final int QUALITY_STATUS_INTERVAL_MILLIS = 500;
+
+	static final String PHASE_NATIVE_LIBRARY = "native library";
+	static final String PHASE_GUI = "GUI";
+	static final String PHASE_CASCADE = "cascade load";
+	static final String PHASE_WEBCAM_PROBE = "webcam probe";
 	
     private static final Logger log = Logger.getLogger(FaceTracker2.class);
-	private XBeeCommunicatorTask xbeeTask = null;
+	private XBeeCommunicatorTask xbeeTask = null;	// The GUI's one-off commands
+	private final PanTiltCommander commander = new PanTiltCommander(DEFAULT_USBPORT, DEFAULT_BAUD_RATE);	// Sends the follower's moves, newest first
 	private WebcamTask webcamTask = null;
 
 	private String usbPort = DEFAULT_USBPORT ;	// The current USB port we talk to the robot through
 	private int baudRate = DEFAULT_BAUD_RATE ;	// The current baud rate that we talk to the robot at
-	private int delta = DEFAULT_DELTA ;
+	private volatile int delta = DEFAULT_DELTA ;	// Step speed from the slider - read by the detection thread
+	private final String[] args;				// For the servo control options - see FaceFollower.useServoAxes()
+	private double downscaleFactor = DetectionPreprocessor.DEFAULT_DOWNSCALE_FACTOR ;
 
 	private JLabel messageLabel ;				// Message bar - displays status messages at the bottom of the window
 	private JButton cancelButton ;				// Cancel button - cancels the currently executing XbeeCommunicatorTask
@@ -65,72 +81,159 @@ public class FaceTracker2 {
 	private JButton pingButton ;				// Ping button - ping the pan-tilt arduino
 	private JButton selfTestButton ;			// Self Test button - asks the pan-tilt arduino to perform a self test
 	private JComboBox baudRateComboBox ;		// Baud rate - choose the speed at which we talk to the robot
-	private JComboBox webCamComboBox ;			// Web cams - choose the webcam to talk to
+	private JComboBox<WebcamDevice> webCamComboBox ;		// Web cams - choose the webcam to talk to
 	private JComboBox usbPortComboBox ;			// USB port - choose the USB port through which we talk to the robot
+	private JComboBox<String> downscaleComboBox ;	// Detection scale - trade detection accuracy for latency
+	private JToggleButton autoQualityButton ;	// Auto quality - let the QualityGovernor choose cascade, scale and frame skipping
+	private JToggleButton overlayButton ;		// Overlay - draw the face boxes and frame rate over the video
+	private JLabel qualityLabel ;				// Status bar - the QualityGovernor's current level
 	
 	private JToggleButton activateWebcamButton;
 	private JLabel deltaLabel ;					// Label for the speed slider
 	private JSlider deltaSlider;				// Speed - choose the speed that the robot will move at
-	private JLabel webcamImageLabel;
-	private ImageIcon webcamImageIcon;
-	private Dimension minimumSize;
-	private Boolean validWebcam[] = new Boolean[4];
-	VideoCapture videoCapture;
+	private VideoPanel videoPanel;
+	private DefaultComboBoxModel<WebcamDevice> webcamModel;	// The webcams discovered so far
+	private StartupTimer startupTimer;
+	private Future<Void> cascadePreload;	// Loads and warms up a classifier into the CascadeClassifierPool in the background at startup
+	volatile VideoCapture videoCapture;
 	
-	public static void main(String[] args) {
+	public static void main(String[] args) throws InterruptedException {
 
-        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		if(CommandLineOptions.hasFlag(args, "headless")) {
+			FaceTracker.main(args); // Nobody's watching - track from the command line without building the GUI
+			return;
+		}
         PropertyConfigurator.configure("log4j.properties");
-        FaceTracker2 tracker = new FaceTracker2();
-        tracker.displayGUI();
+        final FaceTracker2 tracker = new FaceTracker2(args);
+        /*
+         * The GUI is built on the event dispatch thread, queued ahead of the background initialisation's
+         * GUI updates so they always find the widgets in place.
+         */
+        SwingUtilities.invokeLater(new Runnable() {
+        	public void run() {
+                long guiStart = tracker.startupTimer.start();
+                tracker.displayGUI();
+                tracker.startupTimer.finished(PHASE_GUI, guiStart);
+        	}
+        });
+        tracker.startBackgroundInitialisation();
 	}
 
-	private FaceTracker2() {
-		initWebcam();
+	private FaceTracker2(String[] args) {
+		this.args = args;
+		startupTimer = new StartupTimer(log, PHASE_NATIVE_LIBRARY, PHASE_GUI, PHASE_CASCADE, PHASE_WEBCAM_PROBE);
 	}
 	
-	private void initWebcam() {
-		
-		videoCapture = new VideoCapture();
+	/**
+	 * Does the slow parts of startup in the background while the GUI is being built: loads the OpenCV
+	 * native library, then probes the webcams (all at once) and loads and warms up the cascade classifier.
+	 * 
+	 * Webcams are added to the combo box as they are discovered, and the Activate Webcam button is
+	 * enabled as soon as a webcam is selected and the classifier is ready.
+	 */
+	private void startBackgroundInitialisation() {
+		final FutureTask<Void> cascadeTask = new FutureTask<Void>(new Callable<Void>() {
+			public Void call() {
+				long cascadeStart = startupTimer.start();
+				CascadeClassifierPool.getShared().preload(CASCADE_CLASSIFIER_FILENAME, 1);
+				startupTimer.finished(PHASE_CASCADE, cascadeStart);
+				return null;
+			}
+		}) {
+			@Override
+			protected void done() {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						try {
+							cascadePreload.get(); // Already done - just finds out whether it worked
+						} catch (Exception e) {
+							reportStartupFailure("Couldn't load the cascade classifier", e);
+						}
+						updateActivateWebcamButton();
+					}
+				});
+			}
+		};
+		cascadePreload = cascadeTask;
 
-		minimumSize = new Dimension(640, 480);
-		
-		for(int i = 0; i < validWebcam.length; i++) {
-			videoCapture.open(i);
-			if(videoCapture.isOpened()) {
-				
-				Mat image = new Mat();
-				if(videoCapture.read(image)) {
-		            double frameWidth = videoCapture.get(Highgui.CV_CAP_PROP_FRAME_WIDTH);
-		            double frameHeight = videoCapture.get(Highgui.CV_CAP_PROP_FRAME_HEIGHT);
-					System.out.println("Discovered device #" + i + " with dims " + frameWidth + "x" + frameHeight);
-//					minimumSize = new Dimension((int)frameWidth, (int)frameHeight);
-					validWebcam[i] = true;
-				} else
-					validWebcam[i] = false;
-				videoCapture.release();
-			} else {
-				validWebcam[i] = false;
-			}			
+		Thread startupThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					initialise();
+				} catch (Throwable t) {
+					reportStartupFailure("Startup failed", t); // Otherwise the thread dies quietly and we keep looking for webcams forever
+				}
+			}
+
+			private void initialise() {
+				long libraryStart = startupTimer.start();
+				System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+				videoCapture = new VideoCapture();
+				startupTimer.finished(PHASE_NATIVE_LIBRARY, libraryStart);
+
+				final long probeStart = startupTimer.start();
+				new WebcamProber(MAX_WEBCAMS, WEBCAM_PROBE_TIMEOUT_MILLIS).probe(new WebcamProber.Listener() {
+					public void webcamDiscovered(final WebcamDevice device) {
+						SwingUtilities.invokeLater(new Runnable() {
+							public void run() {
+								webcamModel.addElement(device);
+							}
+						});
+					}
+					public void probingFinished(final List<WebcamDevice> devices) {
+						startupTimer.finished(PHASE_WEBCAM_PROBE, probeStart);
+						SwingUtilities.invokeLater(new Runnable() {
+							public void run() {
+								messageLabel.setText(devices.isEmpty() ? "No webcams found" : "Found " + devices.size() + " webcam(s)");
+							}
+						});
+					}
+				});
+
+				cascadeTask.run();
+			}
+		}, "FaceTracker2-startup");
+		startupThread.setDaemon(true);
+		startupThread.start();
+	}
+
+	/**
+	 * Logs a failure in the background initialisation and shows it in the status bar.
+	 */
+	private void reportStartupFailure(final String what, Throwable t) {
+		log.error(what, t);
+		final Throwable cause = t instanceof ExecutionException && t.getCause() != null ? t.getCause() : t;
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				messageLabel.setText(what + ": " + cause);
+			}
+		});
+	}
+
+	/**
+	 * The webcam can only be activated once one has been selected and the cascade classifier has loaded successfully.
+	 */
+	private void updateActivateWebcamButton() {
+		activateWebcamButton.setEnabled(webCamComboBox.getSelectedItem() != null && isCascadeLoaded());
+	}
+
+	private boolean isCascadeLoaded() {
+		if(!cascadePreload.isDone())
+			return false;
+		try {
+			cascadePreload.get();
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			return false;
 		}
-//		videoCapture.open(0);		
-//		if(vc.isOpened()) {
-//			System.out.println("Opened 0 ok"); 
-//			Mat image = new Mat();
-//			if(vc.read(image)) {
-//				System.out.println("Read image with 0"); 
-//			} else {				
-//				System.out.println("Failed to read image with 0");
-//			}
-//		} else {			
-//			System.out.println("Failed to open 0");
-//		}
-//		vc.release();
 	}
 	
 	private void displayGUI() {
 
-		messageLabel = new JLabel("Use arrow keys to move, the period (.) key to stop") ;
+		messageLabel = new JLabel("Looking for webcams...") ;
 		
 		JButton aboutButton = new JButton("About") ;
 		aboutButton.addActionListener(new ActionListener() {
@@ -175,39 +278,25 @@ public class FaceTracker2 {
 		baudRateComboBox.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
 				baudRate = (Integer) baudRateComboBox.getSelectedItem() ;
+				commander.setCommPort(usbPort, baudRate) ;
 			}
 		});
 
-		String[] webCams;
-		int numWebcams = 0;
-		for(int i = 0; i < validWebcam.length; i++) {
-			if(validWebcam[i]) {
-				numWebcams++;
-			}
-		}
-		
-		webCams = new String[numWebcams];
-		int webCamId = 0;
-		for(int i = 0; i < validWebcam.length; i++) {
-			if(validWebcam[i]) {
-				webCams[webCamId++] = new String("Webcam #" + i);
-			}
-		}
-		
-		webCamComboBox = new JComboBox(webCams) ;
+		webcamModel = new DefaultComboBoxModel<WebcamDevice>();
+		webCamComboBox = new JComboBox<WebcamDevice>(webcamModel) ; // Filled in as webcams are discovered
 		webCamComboBox.setSelectedIndex(-1);
 		webCamComboBox.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				int webCamId = webCamComboBox.getSelectedIndex();
-				if(webCamId < 0)
+				WebcamDevice webcam = (WebcamDevice) webCamComboBox.getSelectedItem();
+				if(webcam == null)
 					return;
 
-				activateWebcamButton.setEnabled(true);
 				activateWebcamButton.setSelected(false);
+				updateActivateWebcamButton();
 
 				if(videoCapture.isOpened())
 					videoCapture.release();
-				videoCapture.open(webCamId);
+				videoCapture.open(webcam.getIndex());
 			}
 		});
 
@@ -217,16 +306,77 @@ public class FaceTracker2 {
 			public void actionPerformed(ActionEvent e) {
 				if(activateWebcamButton.isSelected()) {
 					webCamComboBox.setEnabled(false);
-					webcamTask = new WebcamTask(videoCapture, 1000, webcamImageLabel);
+					WebcamDevice webcam = (WebcamDevice) webCamComboBox.getSelectedItem();
+					try {
+						cascadePreload.get();
+					} catch (Exception ex) {
+						log.error("Couldn't load the cascade classifier", ex);
+						activateWebcamButton.setSelected(false);
+						webCamComboBox.setEnabled(true);
+						return;
+					}
+					// Borrows the preloaded classifier and hands it back when deactivated, so toggling never reloads it
+					webcamTask = new WebcamTask(new WebcamFrameSource(videoCapture, webcam.getIndex()), CASCADE_CLASSIFIER_FILENAME, 0, videoPanel);
+					webcamTask.getPreprocessor().setDownscaleFactor(downscaleFactor);
+					if(autoQualityButton.isSelected()) {
+						QualityGovernor governor = new QualityGovernor(QualityGovernor.DEFAULT_TARGET_MILLIS, QualityGovernor.levelFor(CASCADE_CLASSIFIER_FILENAME, downscaleFactor));
+						webcamTask.setQualityGovernor(governor);
+					}
+					final FaceFollower faceFollower = new FaceFollower();
+					if(!CommandLineOptions.hasFlag(args, "bang-bang"))
+						faceFollower.useServoAxes(args); // Absolute PID-driven moves rather than fixed steps
+					commander.setListener(faceFollower); // So the axes only move on when a move has really gone out
+					webcamTask.setListener(new FaceDetectionProcessor.Listener() {
+						public void faceDetected(Rect face, int frameWidth, int frameHeight, long captureNanos) {
+							if(faceFollower.update(face, frameWidth, frameHeight, captureNanos))
+								panTiltTowards(faceFollower);
+						}
+					});
+					autoQualityButton.setEnabled(false);
 					webcamTask.execute();
 				} else {
 					if(webcamTask != null && ! webcamTask.isCancelled() && ! webcamTask.isDone())
 						webcamTask.cancel(false);
 					webCamComboBox.setEnabled(true);
+					autoQualityButton.setEnabled(true);
 				}
 			}
 		});
-		activateWebcamButton.setEnabled(false); // Won't be enabled unless a webcam is selected
+		activateWebcamButton.setEnabled(false); // Won't be enabled unless a webcam is selected and the classifier is loaded
+
+		String[] detectionScales = {"Detect at 1/1", "Detect at 1/2", "Detect at 1/3", "Detect at 1/4" } ;
+		downscaleComboBox = new JComboBox<String>(detectionScales) ;
+		downscaleComboBox.setSelectedIndex((int) downscaleFactor - 1) ;
+		downscaleComboBox.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				downscaleFactor = downscaleComboBox.getSelectedIndex() + 1 ;
+				if(webcamTask != null)
+					webcamTask.getPreprocessor().setDownscaleFactor(downscaleFactor) ; // Takes effect from the next frame
+			}
+		});
+
+		autoQualityButton = new JToggleButton("Auto Quality", true) ;
+		autoQualityButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				downscaleComboBox.setEnabled(!autoQualityButton.isSelected()) ;
+			}
+		});
+		downscaleComboBox.setEnabled(!autoQualityButton.isSelected()) ;
+
+		overlayButton = new JToggleButton("Overlay", true) ;
+		overlayButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				videoPanel.setOverlayEnabled(overlayButton.isSelected()) ; // Takes effect straight away, even while the video is running
+			}
+		});
+
+		qualityLabel = new JLabel(" ") ;
+		new Timer(QUALITY_STATUS_INTERVAL_MILLIS, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				QualityGovernor governor = webcamTask == null ? null : webcamTask.getQualityGovernor();
+				qualityLabel.setText(governor == null || webcamTask.isDone() ? " " : governor.getStatus()) ;
+			}
+		}).start();
 
 		String[] usbPorts = enumerateUsbPorts();
 		usbPortComboBox = new JComboBox(usbPorts) ;
@@ -234,6 +384,7 @@ public class FaceTracker2 {
 		usbPortComboBox.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
 				usbPort = (String) usbPortComboBox.getSelectedItem() ;
+				commander.setCommPort(usbPort, baudRate) ;
 			}
 		});
 		
@@ -259,6 +410,9 @@ public class FaceTracker2 {
 		headerSubPanel1.add(activateWebcamButton);
 		headerSubPanel1.add(aboutButton);
 		headerSubPanel1.add(webCamComboBox);
+		headerSubPanel1.add(downscaleComboBox);
+		headerSubPanel1.add(autoQualityButton);
+		headerSubPanel1.add(overlayButton);
 		headerSubPanel1.add(baudRateComboBox);
 		headerSubPanel1.add(usbPortComboBox);
 		
@@ -280,21 +434,19 @@ public class FaceTracker2 {
 		JPanel centerPanel = new JPanel();
 		LayoutManager centerPanelBoxLayout = new BoxLayout(centerPanel, BoxLayout.PAGE_AXIS);
 		centerPanel.setLayout(centerPanelBoxLayout);
-		webcamImageLabel = new JLabel("");
-
-		BufferedImage image = new BufferedImage(640, 480, BufferedImage.TYPE_INT_RGB);
-		webcamImageIcon = new ImageIcon();
-		webcamImageIcon.setImage(image);
-		webcamImageLabel = new JLabel(webcamImageIcon);
-		webcamImageLabel.setIcon(webcamImageIcon);
-		centerPanel.add(webcamImageLabel);
+		videoPanel = new VideoPanel(640, 480);
+		centerPanel.add(videoPanel);
 
 		JPanel contentPanel = new JPanel();
 		LayoutManager borderLayout = new BorderLayout();
 		
 		contentPanel.setLayout(borderLayout);
 		contentPanel.add(headerPanel, BorderLayout.PAGE_START) ;
-		contentPanel.add(messageLabel, BorderLayout.PAGE_END) ;
+		JPanel statusPanel = new JPanel();
+		statusPanel.setLayout(new BoxLayout(statusPanel, BoxLayout.PAGE_AXIS));
+		statusPanel.add(messageLabel);
+		statusPanel.add(qualityLabel);
+		contentPanel.add(statusPanel, BorderLayout.PAGE_END) ;
 		contentPanel.add(centerPanel, BorderLayout.CENTER) ;
 
 		JFrame mainFrame = new JFrame();
@@ -308,74 +460,14 @@ public class FaceTracker2 {
 	}
 
 	
-	private void panTiltTowards(int webcamWidth, int webcamHeight, Point p) {
-		Point webcamCentre = new Point(webcamWidth / 2.0, webcamHeight / 2.0);
-		Point delta = new Point(p.x - webcamCentre.x, p.y - webcamCentre.y);
-		if(delta.x > webcamWidth / 10) // Only pan if we're more than 10% away from centre
-			panLeft(DEFAULT_DELTA);
-		else if(delta.x < -webcamWidth / 10) // Only pan if we're more than 10% away from centre
-			panRight(DEFAULT_DELTA);
-		if(delta.y > webcamHeight / 10) // Only tilt if we're more than 10% away from centre
-			tiltDown(DEFAULT_DELTA);
-		else if(delta.y < -webcamHeight / 10) // Only tilt if we're more than 10% away from centre
-			tiltUp(DEFAULT_DELTA);
-	}
-
-	/**
-	 * Make the robot move to the left.
-	 */
-	private void panLeft(int delta) {
-		if(isXbeeTaskRunning())
-			return;
-		xbeeTask = new XBeeCommunicatorTask(XBeeCommunicatorTask.CMD_PAN_LEFT, delta, usbPort, baudRate, messageLabel, cancelButton);
-		xbeeTask.execute() ;
-		log.info("Panning left") ;
-	}
-	
-	/**
-	 * Make the robot move to the right.
-	 */
-	private void panRight(int delta) {
-		if(isXbeeTaskRunning())
-			return;
-		xbeeTask = new XBeeCommunicatorTask(XBeeCommunicatorTask.CMD_PAN_RIGHT, delta, usbPort, baudRate, messageLabel, cancelButton);
-		xbeeTask.execute() ;
-		log.info("Panning right") ;
-	}
-	
-	/**
-	 * Make the robot move forward.
-	 */
-	private void tiltUp(int delta) {
-		if(isXbeeTaskRunning())
-			return;
-		log.info("Tilting up") ;
-		xbeeTask = new XBeeCommunicatorTask(XBeeCommunicatorTask.CMD_TILT_UP, delta, usbPort, baudRate, messageLabel, cancelButton);
-		xbeeTask.execute() ;
-	}
-	
 	/**
-	 * Make the robot move backwards.
+	 * Posts the moves the follower asked for. The commander sends the newest one for each axis, both in one command, as soon as the link is free.
 	 */
-	private void tiltDown(int delta) {
-		if(isXbeeTaskRunning())
-			return;
-		log.info("Tilting down") ;
-		xbeeTask = new XBeeCommunicatorTask(XBeeCommunicatorTask.CMD_TILT_DOWN, delta, usbPort, baudRate, messageLabel, cancelButton);
-		xbeeTask.execute() ;
+	private void panTiltTowards(FaceFollower follower) {
+		if(follower.postMoves(commander, delta))
+			log.info(follower.describeMoves()) ;
 	}
 
-	/**
-	 * Kill the previous command if it is still running.
-	 */
-	private boolean isXbeeTaskRunning() {
-		if(xbeeTask != null && xbeeTask.isDone() == false) {
-			return true;
-		} else {
-			xbeeTask = null;
-			return false;
-		}
-	}
 	private void selfTest() {
 		killPreviousCommand() ;
 		log.info("Testing...") ;
@@ -0,0 +1,31 @@
+package org.amplexus.opencv.app;
+
+import org.opencv.core.Mat;
+
+/**
+ * A captured image plus the bookkeeping we need to reason about how stale it is.
+ * 
+ * Frames are recycled between the capture thread and the detector rather than reallocated, so the
+ * image Mat keeps its native buffer from one capture to the next.
+ */
+public class Frame {
+
+	final Mat image = new Mat();
+	long sequence;								// Incremented for every frame the capture thread reads
+	long captureNanos;							// System.nanoTime() when the frame came off the source
+	final FrameDetections detections = new FrameDetections();	// Filled in by the face detection stage, if there is one
+
+	/**
+	 * @return how long ago this frame was captured, in milliseconds
+	 */
+	public double getAgeMillis() {
+		return (System.nanoTime() - captureNanos) / 1e6;
+	}
+
+	/**
+	 * Frees the native image buffer. The frame must not be used afterwards.
+	 */
+	public void release() {
+		image.release();
+	}
+}
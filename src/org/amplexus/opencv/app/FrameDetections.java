@@ -0,0 +1,141 @@
+package org.amplexus.opencv.app;
+
+import org.opencv.core.Rect;
+
+/**
+ * The faces and tracks found in one frame, copied out of the FaceDetector and MultiFaceTracker
+ * (whose results are overwritten by the next frame) so they can travel with the frame to later
+ * pipeline stages.
+ * 
+ * Recycled along with its frame, so the Rects are reused rather than reallocated.
+ */
+public class FrameDetections {
+
+	private int faceCount = 0;
+	private Rect[] faces = new Rect[0];
+	private boolean tracked = false;
+	private int trackCount = 0;
+	private Rect[] trackBoxes = new Rect[0];
+	private int[] trackIds = new int[0];
+	private String[] trackLabels = new String[0];
+	private int targetId = -1;
+
+	/**
+	 * Replaces the detections with the detector's latest faces and, if a tracker is given, its confirmed tracks.
+	 */
+	public void copyFrom(FaceDetector faceDetector, MultiFaceTracker faceTracker) {
+		faceCount = faceDetector.getFaceCount();
+		tracked = faceDetector.isLastResultTracked();
+		faces = ensureCapacity(faces, faceCount);
+		for(int i = 0; i < faceCount; i++)
+			copy(faceDetector.getFace(i), faces[i]);
+		trackCount = 0;
+		targetId = -1;
+		if(faceTracker == null)
+			return;
+		MultiFaceTracker.Track target = faceTracker.getTarget();
+		targetId = target == null ? -1 : target.getId();
+		trackBoxes = ensureCapacity(trackBoxes, faceTracker.getTrackCount());
+		if(trackIds.length < trackBoxes.length) {
+			trackIds = new int[trackBoxes.length];
+			trackLabels = new String[trackBoxes.length];
+		}
+		for(int i = 0; i < faceTracker.getTrackCount(); i++) {
+			MultiFaceTracker.Track track = faceTracker.getTrack(i);
+			if(!track.isConfirmed())
+				continue;
+			copy(track.getBox(), trackBoxes[trackCount]);
+			trackIds[trackCount] = track.getId();
+			trackLabels[trackCount] = track.getLabel();
+			trackCount++;
+		}
+	}
+
+	/**
+	 * Replaces the detections with a copy of another frame's.
+	 */
+	public void copyFrom(FrameDetections other) {
+		faceCount = other.faceCount;
+		tracked = other.tracked;
+		faces = ensureCapacity(faces, faceCount);
+		for(int i = 0; i < faceCount; i++)
+			copy(other.faces[i], faces[i]);
+		trackCount = other.trackCount;
+		targetId = other.targetId;
+		trackBoxes = ensureCapacity(trackBoxes, trackCount);
+		if(trackIds.length < trackBoxes.length) {
+			trackIds = new int[trackBoxes.length];
+			trackLabels = new String[trackBoxes.length];
+		}
+		for(int i = 0; i < trackCount; i++) {
+			copy(other.trackBoxes[i], trackBoxes[i]);
+			trackIds[i] = other.trackIds[i];
+			trackLabels[i] = other.trackLabels[i];
+		}
+	}
+
+	public void clear() {
+		faceCount = 0;
+		trackCount = 0;
+		targetId = -1;
+		tracked = false;
+	}
+
+	public int getFaceCount() {
+		return faceCount;
+	}
+
+	public Rect getFace(int i) {
+		return faces[i];
+	}
+
+	/**
+	 * @return true if the faces came from template tracking rather than the cascade
+	 */
+	public boolean isTracked() {
+		return tracked;
+	}
+
+	/**
+	 * @return how many confirmed tracks there were
+	 */
+	public int getTrackCount() {
+		return trackCount;
+	}
+
+	public Rect getTrackBox(int i) {
+		return trackBoxes[i];
+	}
+
+	public int getTrackId(int i) {
+		return trackIds[i];
+	}
+
+	public String getTrackLabel(int i) {
+		return trackLabels[i];
+	}
+
+	/**
+	 * @return the ID of the track the camera is following, or -1
+	 */
+	public int getTargetId() {
+		return targetId;
+	}
+
+	private static void copy(Rect from, Rect to) {
+		to.x = from.x;
+		to.y = from.y;
+		to.width = from.width;
+		to.height = from.height;
+	}
+
+	private static Rect[] ensureCapacity(Rect[] rects, int capacity) {
+		if(rects.length >= capacity)
+			return rects;
+		Rect[] grown = new Rect[Math.max(capacity, rects.length * 2)];
+		System.arraycopy(rects, 0, grown, 0, rects.length);
+		for(int i = rects.length; i < grown.length; i++)
+			grown[i] = new Rect();
+		return grown;
+	}
+}
@@ -0,0 +1,79 @@
+package org.amplexus.opencv.app;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Continuously drains a FrameSource on its own thread into a LatestFrameExchange.
+ * 
+ * Keeping the camera drained means the driver never buffers frames behind our back while a
+ * detection is running, so the detector always sees what the camera sees now.
+ */
+public class FrameGrabber implements Runnable {
+
+	private static final Logger log = Logger.getLogger(FrameGrabber.class);
+
+	private FrameSource source;
+	private LatestFrameExchange exchange;
+	private Thread thread = null;
+	private volatile boolean running = false;
+
+	public FrameGrabber(FrameSource source, LatestFrameExchange exchange) {
+		this.source = source;
+		this.exchange = exchange;
+	}
+
+	/**
+	 * Starts capturing on a new daemon thread.
+	 */
+	public void start() {
+		running = true;
+		thread = new Thread(this, "FrameGrabber " + source.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops capturing and waits for the capture thread to finish its current read.
+	 * The source is left open - it belongs to whoever created it.
+	 */
+	public void stop() {
+		running = false;
+		if(thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		thread = null;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	public void run() {
+		Frame frame = exchange.emptyFrame();
+		long sequence = 0;
+		try {
+			if(!source.open()) {
+				log.error("Couldn't open " + source.getName());
+				return;
+			}
+			while(running) {
+				if(!source.read(frame.image)) {
+					log.info("No more frames from " + source.getName());
+					break;
+				}
+				frame.captureNanos = System.nanoTime();
+				frame.sequence = sequence++;
+				frame = exchange.publish(frame);
+			}
+		} finally {
+			running = false;
+			exchange.recycle(frame);
+			exchange.close();
+		}
+	}
+}
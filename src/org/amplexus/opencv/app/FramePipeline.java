@@ -0,0 +1,249 @@
+package org.amplexus.opencv.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs frames from a source through a chain of FrameProcessors, each on its own thread, so that
+ * while one frame is being displayed the next is being detected and the one after that captured.
+ * 
+ * Stages are joined by small bounded queues. A stage that falls behind blocks the one before it,
+ * back up to the capture thread - which, for a live camera or a real time replay, drops the frame
+ * rather than wait, so the pipeline always works on fresh frames. A flat out replay waits instead,
+ * so no recorded frame is lost. Frames come from a FramePool and go back to it after the last stage.
+ * 
+ * Every stage keeps PipelineStats of its throughput, processing time and latency since capture.
+ * 
+ *	FramePipeline pipeline = new FramePipeline(source)
+ *			.add(new GrayscaleProcessor())
+ *			.add(new CannyEdgeProcessor())
+ *			.add(new DisplayProcessor("Edges"));
+ *	pipeline.start();
+ */
+public class FramePipeline {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 2;
+	static final long POLL_MILLIS = 100;
+
+	private static final Logger log = Logger.getLogger(FramePipeline.class);
+
+	private final FrameSource source;
+	private final int queueCapacity;
+	private final List<Stage> stages = new ArrayList<Stage>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private final AtomicLong captured = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private FramePool framePool;
+	private Frame endOfStream;			// Passed down the stages after the last frame
+	private volatile boolean running = false;
+
+	public FramePipeline(FrameSource source) {
+		this(source, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * @param queueCapacity how many frames may wait between two stages
+	 */
+	public FramePipeline(FrameSource source, int queueCapacity) {
+		this.source = source;
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Adds a stage after the ones already added. Must be called before start().
+	 */
+	public FramePipeline add(FrameProcessor processor) {
+		stages.add(new Stage(processor, new ArrayBlockingQueue<Frame>(queueCapacity)));
+		return this;
+	}
+
+	/**
+	 * Opens the source and starts the capture thread and one thread per stage.
+	 * 
+	 * @return false if the source couldn't be opened
+	 */
+	public boolean start() {
+		if(!source.open()) {
+			log.error("Couldn't open " + source.getName());
+			return false;
+		}
+		framePool = new FramePool((stages.size() + 1) * (queueCapacity + 1));
+		endOfStream = new Frame();
+		running = true;
+		DaemonThreadFactory threadFactory = new DaemonThreadFactory("pipeline");
+		for(int i = 0; i < stages.size(); i++) {
+			final Stage stage = stages.get(i);
+			final BlockingQueue<Frame> next = i + 1 < stages.size() ? stages.get(i + 1).input : null;
+			Thread thread = threadFactory.newThread(new Runnable() {
+				public void run() {
+					stage.run(next);
+				}
+			});
+			thread.setName(thread.getName() + "-" + stage.processor.getName());
+			threads.add(thread);
+		}
+		Thread captureThread = threadFactory.newThread(new Runnable() {
+			public void run() {
+				capture();
+			}
+		});
+		captureThread.setName(captureThread.getName() + "-capture");
+		threads.add(captureThread);
+		for(Thread thread : threads)
+			thread.start();
+		return true;
+	}
+
+	private void capture() {
+		boolean dropWhenBusy = !(source instanceof ReplayFrameSource) || ((ReplayFrameSource) source).isRealTime();
+		BlockingQueue<Frame> first = stages.isEmpty() ? null : stages.get(0).input;
+		try {
+			while(running) {
+				Frame frame = framePool.acquire();
+				if(!source.read(frame.image)) {
+					framePool.release(frame);
+					break;
+				}
+				frame.captureNanos = System.nanoTime();
+				frame.sequence = captured.incrementAndGet();
+				frame.detections.clear();
+				if(first == null) {
+					framePool.release(frame);
+				} else if(dropWhenBusy) {
+					if(!first.offer(frame)) {
+						dropped.incrementAndGet();
+						framePool.release(frame);
+					}
+				} else {
+					first.put(frame);
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopping
+		} finally {
+			if(first != null) {
+				try {
+					first.put(endOfStream);
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops capturing, waits for the frames already captured to drain through, and releases the source.
+	 */
+	public void stop() throws InterruptedException {
+		running = false;
+		awaitCompletion(0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Waits for the source to run out and the last frame to go through every stage.
+	 * 
+	 * @param timeout how long to wait, or 0 to wait for ever
+	 * @return true if the pipeline has finished
+	 */
+	public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for(Thread thread : threads) {
+			if(timeout == 0) {
+				thread.join();
+			} else {
+				long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if(remainingMillis <= 0)
+					return false;
+				thread.join(remainingMillis);
+				if(thread.isAlive())
+					return false;
+			}
+		}
+		if(framePool != null) {
+			source.release();
+			framePool.close();
+			endOfStream.release();
+			framePool = null;
+		}
+		return true;
+	}
+
+	/**
+	 * @return each stage's stats, in pipeline order
+	 */
+	public List<PipelineStats> getStageStats() {
+		List<PipelineStats> stats = new ArrayList<PipelineStats>(stages.size());
+		for(Stage stage : stages)
+			stats.add(stage.stats);
+		return stats;
+	}
+
+	/**
+	 * Summarises every stage since the last report, plus the frames the capture thread had to drop.
+	 */
+	public String report() {
+		StringBuilder report = new StringBuilder();
+		report.append(source.getName()).append(": captured ").append(captured.get()).append(", dropped ").append(dropped.get());
+		for(Stage stage : stages)
+			report.append("; ").append(stage.stats.report());
+		return report.toString();
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * A processor, the queue feeding it, and its stats.
+	 */
+	private class Stage {
+
+		final FrameProcessor processor;
+		final BlockingQueue<Frame> input;
+		final PipelineStats stats;
+
+		Stage(FrameProcessor processor, BlockingQueue<Frame> input) {
+			this.processor = processor;
+			this.input = input;
+			this.stats = new PipelineStats(processor.getName(), "process");
+		}
+
+		void run(BlockingQueue<Frame> next) {
+			try {
+				while(true) {
+					Frame frame = input.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+					if(frame == null)
+						continue;
+					if(frame == endOfStream) {
+						if(next != null)
+							next.put(endOfStream);
+						break;
+					}
+					long start = System.nanoTime();
+					boolean keep;
+					try {
+						keep = processor.process(frame);
+					} catch (RuntimeException e) {
+						log.error(processor.getName() + " failed on frame " + frame.sequence, e);
+						keep = false;
+					}
+					long end = System.nanoTime();
+					stats.frameProcessed(end - start, end - frame.captureNanos);
+					if(keep && next != null)
+						next.put(frame);
+					else
+						framePool.release(frame);
+				}
+			} catch (InterruptedException e) {
+				// Stopping
+			} finally {
+				processor.close();
+			}
+		}
+	}
+}
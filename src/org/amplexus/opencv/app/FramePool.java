@@ -0,0 +1,87 @@
+package org.amplexus.opencv.app;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed size, lock-free ring of reusable frames.
+ * 
+ * Every frame handed out by acquire() must eventually come back through release(). Once the pipeline
+ * has warmed up the same handful of frames (and their native image buffers) circulate forever, so
+ * tracking allocates nothing per frame - neither on the Java heap nor natively.
+ * 
+ * The allocation count and high-water mark let us check that's actually true: both should stop
+ * moving once the pipeline reaches steady state.
+ */
+public class FramePool {
+
+	private final AtomicReferenceArray<Frame> free;
+	private final AtomicInteger allocatedCount = new AtomicInteger();
+	private final AtomicInteger outstandingCount = new AtomicInteger();
+	private final AtomicInteger highWaterMark = new AtomicInteger();
+	private volatile boolean closed = false;
+
+	/**
+	 * @param capacity the number of idle frames the pool will hold on to
+	 */
+	public FramePool(int capacity) {
+		free = new AtomicReferenceArray<Frame>(capacity);
+	}
+
+	/**
+	 * @return an idle frame from the pool, or a newly allocated one if the pool is empty
+	 */
+	public Frame acquire() {
+		int outstanding = outstandingCount.incrementAndGet();
+		int mark = highWaterMark.get();
+		while(outstanding > mark && !highWaterMark.compareAndSet(mark, outstanding))
+			mark = highWaterMark.get();
+		for(int i = 0; i < free.length(); i++) {
+			Frame frame = free.get(i);
+			if(frame != null && free.compareAndSet(i, frame, null))
+				return frame;
+		}
+		allocatedCount.incrementAndGet();
+		return new Frame();
+	}
+
+	/**
+	 * Returns a frame to the pool. If the pool is full or closed the frame's native buffer is freed.
+	 */
+	public void release(Frame frame) {
+		outstandingCount.decrementAndGet();
+		if(!closed) {
+			for(int i = 0; i < free.length(); i++) {
+				if(free.get(i) == null && free.compareAndSet(i, null, frame))
+					return;
+			}
+		}
+		frame.release();
+	}
+
+	/**
+	 * Frees every idle frame. Frames still in use are freed as they are released.
+	 */
+	public void close() {
+		closed = true;
+		for(int i = 0; i < free.length(); i++) {
+			Frame frame = free.getAndSet(i, null);
+			if(frame != null)
+				frame.release();
+		}
+	}
+
+	/**
+	 * @return the total number of frames this pool has ever had to allocate
+	 */
+	public int getAllocatedCount() {
+		return allocatedCount.get();
+	}
+
+	/**
+	 * @return the most frames that have been checked out of the pool at the same time
+	 */
+	public int getHighWaterMark() {
+		return highWaterMark.get();
+	}
+}
@@ -0,0 +1,28 @@
+package org.amplexus.opencv.app;
+
+/**
+ * One stage of a FramePipeline - grey conversion, edge detection, face detection, drawing,
+ * display, recording and so on.
+ * 
+ * Each stage runs on its own thread, so a processor only ever sees one frame at a time and needs
+ * no locking of its own. process() and close() are called on the stage's thread.
+ */
+public interface FrameProcessor {
+
+	/**
+	 * Works on the frame, usually changing its image or detections in place.
+	 * 
+	 * @return false to drop the frame rather than pass it on to the next stage
+	 */
+	boolean process(Frame frame);
+
+	/**
+	 * Frees anything the processor holds. Called once the last frame has gone through.
+	 */
+	void close();
+
+	/**
+	 * @return a short name for thread names and stats, e.g. "canny"
+	 */
+	String getName();
+}
@@ -0,0 +1,45 @@
+package org.amplexus.opencv.app;
+
+import org.opencv.core.Mat;
+
+/**
+ * A source of video frames for the detection loops.
+ * 
+ * Lets the trackers run against a live webcam, a recorded video or a directory of still images
+ * without caring which one they've got - which means the detection loop can be benchmarked and
+ * regression tested on a box with no camera attached.
+ * 
+ * @author craig
+ */
+public interface FrameSource {
+
+	/**
+	 * Opens the underlying device or file. Opening a source that is already open does nothing.
+	 * 
+	 * @return true if frames can now be read
+	 */
+	boolean open();
+
+	/**
+	 * @return true if the source has been opened and not yet released
+	 */
+	boolean isOpened();
+
+	/**
+	 * Reads the next frame into the supplied Mat, reallocating it only if the frame size changes.
+	 * 
+	 * @param frame the Mat to read into
+	 * @return false if the source is exhausted or the device failed, in which case frame is untouched
+	 */
+	boolean read(Mat frame);
+
+	/**
+	 * Closes the underlying device or file.
+	 */
+	void release();
+
+	/**
+	 * @return a human readable description of where the frames come from, for logs and the GUI
+	 */
+	String getName();
+}
@@ -0,0 +1,70 @@
+package org.amplexus.opencv.app;
+
+import java.io.File;
+
+/**
+ * Builds a FrameSource from a command line argument, so every main loop accepts the same syntax:
+ * 
+ *	<device index>			a live webcam, e.g. "0" or "-1"
+ *	<directory>				every image in the directory, in filename order
+ *	<image>[,<image>...]	the listed still images, e.g. "resources/img1.png,resources/img2.png"
+ *	<file>.mjpeg			a recorded Motion JPEG stream
+ * 
+ * Replayed sources are paced at DEFAULT_REPLAY_FPS unless the "--fast" option is given, in which
+ * case they run as fast as the pipeline can consume them.
+ */
+public class FrameSources {
+
+	public static final double	DEFAULT_REPLAY_FPS	= 30.0;
+	public static final String	FAST_OPTION			= "--fast";
+	public static final String	LOOP_OPTION			= "--loop";
+
+	private FrameSources() {
+	}
+
+	/**
+	 * Creates a frame source from the first non-option argument, falling back to the given webcam.
+	 */
+	public static FrameSource fromArgs(String[] args, int defaultDevice) {
+		String spec = null;
+		boolean fast = false;
+		boolean loop = false;
+		for(String arg : args) {
+			if(FAST_OPTION.equals(arg))
+				fast = true;
+			else if(LOOP_OPTION.equals(arg))
+				loop = true;
+			else if(spec == null && !arg.startsWith("--"))
+				spec = arg;
+		}
+		if(spec == null)
+			return new WebcamFrameSource(defaultDevice);
+		FrameSource source = create(spec, fast ? 0 : DEFAULT_REPLAY_FPS);
+		if(source instanceof ReplayFrameSource)
+			((ReplayFrameSource) source).setLooping(loop);
+		return source;
+	}
+
+	/**
+	 * @param spec a device index, directory, image list or Motion JPEG file
+	 * @param framesPerSecond the replay rate for recorded sources, zero for as fast as possible
+	 */
+	public static FrameSource create(String spec, double framesPerSecond) {
+		try {
+			return new WebcamFrameSource(Integer.parseInt(spec));
+		} catch (NumberFormatException e) {
+			// Not a device index
+		}
+		File file = new File(spec);
+		if(file.isDirectory())
+			return new ImageSequenceFrameSource(file, framesPerSecond);
+		if(spec.indexOf(',') >= 0 || ImageSequenceFrameSource.isImageFile(file)) {
+			String[] filenames = spec.split(",");
+			File[] files = new File[filenames.length];
+			for(int i = 0; i < filenames.length; i++)
+				files[i] = new File(filenames[i].trim());
+			return new ImageSequenceFrameSource(files, framesPerSecond);
+		}
+		return new MjpegFileFrameSource(file, framesPerSecond);
+	}
+}
@@ -0,0 +1,27 @@
+package org.amplexus.opencv.app;
+
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Converts the frame's image to grey, in place. Grey frames are passed through untouched.
+ */
+public class GrayscaleProcessor implements FrameProcessor {
+
+	@Override
+	public boolean process(Frame frame) {
+		if(frame.image.channels() == 3)
+			Imgproc.cvtColor(frame.image, frame.image, Imgproc.COLOR_BGR2GRAY);
+		else if(frame.image.channels() == 4)
+			Imgproc.cvtColor(frame.image, frame.image, Imgproc.COLOR_BGRA2GRAY);
+		return true;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public String getName() {
+		return "grey";
+	}
+}
@@ -0,0 +1,134 @@
+package org.amplexus.opencv.app;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free, single slot handoff of the most recent frame from one capture thread to one detector.
+ * 
+ * The capture thread never waits for the detector: publishing a frame overwrites whatever is in the
+ * slot, and an overwritten frame is counted as dropped and handed straight back to the capture thread
+ * to be filled again. The detector therefore always works on the freshest frame available, rather
+ * than on one that sat in a queue (or the driver's buffer) while the previous detection ran.
+ * 
+ * Frames come from, and go back to, a FramePool. In steady state three frames circulate (one being
+ * captured, one waiting, one being processed) and nothing is allocated.
+ */
+public class LatestFrameExchange {
+
+	private final AtomicReference<Frame> latest = new AtomicReference<Frame>();
+	private final FramePool pool;
+	private final AtomicLong publishedCount = new AtomicLong();
+	private final AtomicLong takenCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private volatile Thread waitingConsumer = null;
+	private volatile boolean closed = false;
+
+	public LatestFrameExchange(FramePool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Called by the capture thread to get its first frame to capture into.
+	 */
+	public Frame emptyFrame() {
+		return pool.acquire();
+	}
+
+	/**
+	 * Called by the capture thread with a freshly filled frame.
+	 * 
+	 * @return a frame to capture into next - the stale frame that was just overwritten if there was one
+	 */
+	public Frame publish(Frame frame) {
+		publishedCount.incrementAndGet();
+		Frame stale = latest.getAndSet(frame);
+		Thread consumer = waitingConsumer;
+		if(consumer != null)
+			LockSupport.unpark(consumer);
+		if(stale != null) {
+			droppedCount.incrementAndGet();
+			return stale;
+		}
+		return pool.acquire();
+	}
+
+	/**
+	 * Called by the detector to get the newest frame, waiting for one if the slot is empty.
+	 * 
+	 * @return the newest frame, or null if none arrived in time or the exchange has been closed
+	 * @throws InterruptedException if the detector thread is interrupted while waiting
+	 */
+	public Frame take(long timeout, TimeUnit unit) throws InterruptedException {
+		Frame frame = latest.getAndSet(null);
+		if(frame == null) {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			waitingConsumer = Thread.currentThread();
+			try {
+				while((frame = latest.getAndSet(null)) == null) {
+					long remaining = deadline - System.nanoTime();
+					if(closed || remaining <= 0)
+						return null;
+					LockSupport.parkNanos(this, remaining);
+					if(Thread.interrupted())
+						throw new InterruptedException();
+				}
+			} finally {
+				waitingConsumer = null;
+			}
+		}
+		takenCount.incrementAndGet();
+		return frame;
+	}
+
+	/**
+	 * Called by the detector (or whoever it passed the frame on to) once it is finished with a frame,
+	 * so the capture thread can reuse its buffer.
+	 */
+	public void recycle(Frame frame) {
+		pool.release(frame);
+	}
+
+	/**
+	 * Marks the end of the stream - the capture thread has stopped and no more frames will be published.
+	 */
+	public void close() {
+		closed = true;
+		Thread consumer = waitingConsumer;
+		if(consumer != null)
+			LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * Returns any frame nobody took back to the pool. Called by the detector when it gives up on the stream.
+	 */
+	public void clear() {
+		Frame frame = latest.getAndSet(null);
+		if(frame != null)
+			pool.release(frame);
+	}
+
+	/**
+	 * @return true once the exchange is closed and the last frame has been taken
+	 */
+	public boolean isFinished() {
+		return closed && latest.get() == null;
+	}
+
+	public long getPublishedCount() {
+		return publishedCount.get();
+	}
+
+	public long getTakenCount() {
+		return takenCount.get();
+	}
+
+	/**
+	 * @return the number of frames that were overwritten before the detector got to them
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+}
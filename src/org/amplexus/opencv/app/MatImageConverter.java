@@ -0,0 +1,48 @@
+package org.amplexus.opencv.app;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Copies a Mat's pixels straight into a BufferedImage for display.
+ * 
+ * OpenCV keeps colour images as interleaved BGR bytes, which is exactly the layout of a
+ * TYPE_3BYTE_BGR raster, and grey scale images as one byte per pixel, which is TYPE_BYTE_GRAY. So a
+ * single Mat.get() into the raster's backing array does the whole conversion - no JPEG encoding and
+ * decoding as we used to. The image is reused from one call to the next while the frame size and
+ * channel count stay the same, so steady state conversion allocates nothing.
+ * 
+ * Not thread safe - the returned image is overwritten by the next call.
+ */
+public class MatImageConverter {
+
+	private final Mat continuous = new Mat();	// For the odd Mat (e.g. a submat) whose rows aren't back to back
+	private BufferedImage image = null;
+
+	/**
+	 * @param mat an 8 bit, 1 or 3 channel image
+	 * @return the converted image, which is only valid until the next call
+	 */
+	public BufferedImage convert(Mat mat) {
+		if(mat.depth() != CvType.CV_8U || (mat.channels() != 1 && mat.channels() != 3))
+			throw new IllegalArgumentException("Can only display 8 bit, 1 or 3 channel images, not " + CvType.typeToString(mat.type()));
+		int type = mat.channels() == 1 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR;
+		if(image == null || image.getWidth() != mat.cols() || image.getHeight() != mat.rows() || image.getType() != type)
+			image = new BufferedImage(mat.cols(), mat.rows(), type);
+		byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		if(mat.isContinuous()) {
+			mat.get(0, 0, pixels);
+		} else {
+			mat.copyTo(continuous);
+			continuous.get(0, 0, pixels);
+		}
+		return image;
+	}
+
+	public void release() {
+		continuous.release();
+	}
+}
@@ -0,0 +1,139 @@
+package org.amplexus.opencv.app;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+
+/**
+ * Replays a recorded Motion JPEG file - a plain concatenation of JPEG images, as written by
+ * e.g. "ffmpeg -i input.avi -f mjpeg output.mjpeg".
+ * 
+ * The OpenCV 2.4.6 java bindings can't open a VideoCapture on a file, so we split the stream on
+ * the JPEG start/end of image markers ourselves and decode each frame with Highgui.imdecode.
+ * The whole file is read into memory when opened so replay isn't limited by the disk.
+ */
+public class MjpegFileFrameSource extends ReplayFrameSource {
+
+	private static final Logger log = Logger.getLogger(MjpegFileFrameSource.class);
+
+	private File file;
+	private List<byte[]> encodedFrames = null;
+	private int nextFrame = 0;
+	private Mat encodedFrame = new Mat();
+
+	public MjpegFileFrameSource(File file, double framesPerSecond) {
+		super(framesPerSecond);
+		this.file = file;
+	}
+
+	@Override
+	public boolean open() {
+		if(encodedFrames != null)
+			return true;
+		try {
+			encodedFrames = splitFrames(readFully(file));
+		} catch (IOException e) {
+			log.error("Couldn't read " + file, e);
+			return false;
+		}
+		nextFrame = 0;
+		if(encodedFrames.isEmpty()) {
+			log.error("No JPEG frames found in " + file);
+			encodedFrames = null;
+			return false;
+		}
+		log.info("Loaded " + encodedFrames.size() + " frames from " + file);
+		return true;
+	}
+
+	@Override
+	public boolean isOpened() {
+		return encodedFrames != null;
+	}
+
+	@Override
+	public boolean read(Mat frame) {
+		if(encodedFrames == null)
+			return false;
+		for(int attempts = 0; attempts < encodedFrames.size(); attempts++) {
+			if(nextFrame == encodedFrames.size()) {
+				if(!isLooping())
+					return false;
+				nextFrame = 0;
+			}
+			byte[] bytes = encodedFrames.get(nextFrame++);
+			encodedFrame.create(1, bytes.length, CvType.CV_8UC1);
+			encodedFrame.put(0, 0, bytes);
+			Mat decoded = Highgui.imdecode(encodedFrame, Highgui.CV_LOAD_IMAGE_COLOR);
+			if(!decoded.empty()) {
+				pace();
+				decoded.copyTo(frame);
+				decoded.release();
+				return true;
+			}
+			log.warn("Skipping undecodable frame #" + (nextFrame - 1) + " in " + file);
+			decoded.release();
+		}
+		return false;
+	}
+
+	@Override
+	public void release() {
+		encodedFrames = null;
+		encodedFrame.release();
+	}
+
+	@Override
+	public String getName() {
+		return file.getPath();
+	}
+
+	private static byte[] readFully(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int offset = 0;
+			while(offset < bytes.length) {
+				int n = in.read(bytes, offset, bytes.length - offset);
+				if(n < 0)
+					break;
+				offset += n;
+			}
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Splits the stream on SOI (FF D8) / EOI (FF D9) markers. Entropy coded data never contains an
+	 * unstuffed FF D9, so this is safe as long as the frames don't carry embedded EXIF thumbnails.
+	 */
+	private static List<byte[]> splitFrames(byte[] stream) {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		int start = -1;
+		for(int i = 0; i < stream.length - 1; i++) {
+			if((stream[i] & 0xff) != 0xff)
+				continue;
+			int marker = stream[i + 1] & 0xff;
+			if(marker == 0xd8 && start < 0) {
+				start = i;
+			} else if(marker == 0xd9 && start >= 0) {
+				byte[] frame = new byte[i + 2 - start];
+				System.arraycopy(stream, start, frame, 0, frame.length);
+				frames.add(frame);
+				start = -1;
+				i++;
+			}
+		}
+		return frames;
+	}
+}
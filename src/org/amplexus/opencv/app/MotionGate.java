@@ -0,0 +1,195 @@
+package org.amplexus.opencv.app;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Works out cheaply whether, and where, a grey image has changed since detection last ran.
+ * 
+ * Each image is shrunk to about MOTION_WIDTH pixels wide and differenced with a reference image: the
+ * last one detection actually ran on, which the caller marks with updateReference(). Comparing with
+ * the frame just before instead would never notice a movement slow enough to stay under the
+ * threshold from one frame to the next - here it adds up until it crosses it. The
+ * shrinking averages away most sensor noise, and a pixel only counts as changed if it differs by more
+ * than pixelThreshold grey levels. The image is divided into a grid of cells, and a cell has changed if
+ * more than minChangedFraction of its pixels have. The result is a per-cell change map plus the
+ * bounding box of the changed cells (grown by a cell all round, since a moving head rarely changes
+ * every pixel of the face).
+ * 
+ * All the working buffers are reused, so a static scene costs a resize, an absdiff and a pass over a
+ * few thousand bytes per frame. Not thread safe.
+ */
+public class MotionGate {
+
+	public static final int DEFAULT_PIXEL_THRESHOLD = 25;			// Grey levels
+	public static final double DEFAULT_MIN_CHANGED_FRACTION = 0.02;	// Of a cell's pixels
+	static final int MOTION_WIDTH = 80;
+	static final int GRID_COLUMNS = 8;
+	static final int GRID_ROWS = 6;
+
+	private Mat small = new Mat();
+	private Mat reference = new Mat();
+	private final Mat difference = new Mat();
+	private final Size smallSize = new Size();
+	private byte[] pixels = new byte[0];
+	private final int[] changedPixels = new int[GRID_COLUMNS * GRID_ROWS];
+	private final boolean[] changedCells = new boolean[GRID_COLUMNS * GRID_ROWS];
+	private int changedCellCount = 0;
+	private final Rect changedBounds = new Rect();
+	private boolean hasReference = false;
+	private boolean latestIsReference = false;		// updateReference() has already taken the last image
+	private volatile int pixelThreshold;
+	private volatile double minChangedFraction;
+
+	public MotionGate() {
+		this(DEFAULT_PIXEL_THRESHOLD, DEFAULT_MIN_CHANGED_FRACTION);
+	}
+
+	/**
+	 * @param pixelThreshold how many grey levels a pixel must change by to count
+	 * @param minChangedFraction how much of a cell must change for the cell to count, from 0 to 1
+	 */
+	public MotionGate(int pixelThreshold, double minChangedFraction) {
+		this.pixelThreshold = pixelThreshold;
+		this.minChangedFraction = minChangedFraction;
+	}
+
+	/**
+	 * Compares the image with the reference. The first image, and any image of a different size to the
+	 * reference, counts as changed everywhere and becomes the reference.
+	 * 
+	 * @param grey a single channel image
+	 * @return true if any cell changed
+	 */
+	public boolean update(Mat grey) {
+		double shrink = Math.max(1.0, grey.cols() / (double) MOTION_WIDTH);
+		smallSize.width = Math.max(1, Math.round(grey.cols() / shrink));
+		smallSize.height = Math.max(1, Math.round(grey.rows() / shrink));
+		Imgproc.resize(grey, small, smallSize, 0, 0, Imgproc.INTER_AREA);
+		latestIsReference = false;
+		if(!hasReference || reference.cols() != small.cols() || reference.rows() != small.rows()) {
+			updateReference();
+			markEverythingChanged(grey);
+			return true;
+		}
+		Core.absdiff(small, reference, difference);
+
+		int width = difference.cols();
+		int height = difference.rows();
+		if(pixels.length < width * height)
+			pixels = new byte[width * height];
+		difference.get(0, 0, pixels);
+		int cellWidth = (width + GRID_COLUMNS - 1) / GRID_COLUMNS;
+		int cellHeight = (height + GRID_ROWS - 1) / GRID_ROWS;
+		int threshold = pixelThreshold;
+		for(int i = 0; i < changedPixels.length; i++)
+			changedPixels[i] = 0;
+		for(int y = 0; y < height; y++) {
+			int rowStart = y * width;
+			int cellRow = y / cellHeight * GRID_COLUMNS;
+			for(int x = 0; x < width; x++) {
+				if((pixels[rowStart + x] & 0xff) > threshold)
+					changedPixels[cellRow + x / cellWidth]++;
+			}
+		}
+
+		int minChangedPixels = Math.max(1, (int) (cellWidth * cellHeight * minChangedFraction));
+		int left = GRID_COLUMNS, top = GRID_ROWS, right = -1, bottom = -1;
+		changedCellCount = 0;
+		for(int row = 0; row < GRID_ROWS; row++) {
+			for(int column = 0; column < GRID_COLUMNS; column++) {
+				int cell = row * GRID_COLUMNS + column;
+				changedCells[cell] = changedPixels[cell] >= minChangedPixels;
+				if(changedCells[cell]) {
+					changedCellCount++;
+					left = Math.min(left, column);
+					top = Math.min(top, row);
+					right = Math.max(right, column);
+					bottom = Math.max(bottom, row);
+				}
+			}
+		}
+		if(changedCellCount == 0) {
+			changedBounds.x = changedBounds.y = changedBounds.width = changedBounds.height = 0;
+			return false;
+		}
+
+		// Grow by a cell all round, and scale the cell grid back up to the caller's image
+		double scaleX = grey.cols() / (double) width;
+		double scaleY = grey.rows() / (double) height;
+		int x0 = (int) (Math.max(0, left - 1) * cellWidth * scaleX);
+		int y0 = (int) (Math.max(0, top - 1) * cellHeight * scaleY);
+		int x1 = (int) Math.min(grey.cols(), Math.ceil((right + 2) * cellWidth * scaleX));
+		int y1 = (int) Math.min(grey.rows(), Math.ceil((bottom + 2) * cellHeight * scaleY));
+		changedBounds.x = x0;
+		changedBounds.y = y0;
+		changedBounds.width = Math.max(1, x1 - x0);
+		changedBounds.height = Math.max(1, y1 - y0);
+		return true;
+	}
+
+	/**
+	 * Makes the image from the last update() the one later images are compared with. Call it when
+	 * detection has run on that image; while frames are skipped the reference stays put.
+	 */
+	public void updateReference() {
+		if(latestIsReference)
+			return;
+		Mat swap = reference;
+		reference = small;
+		small = swap;
+		hasReference = true;
+		latestIsReference = true;
+	}
+
+	private void markEverythingChanged(Mat grey) {
+		for(int i = 0; i < changedCells.length; i++)
+			changedCells[i] = true;
+		changedCellCount = changedCells.length;
+		changedBounds.x = changedBounds.y = 0;
+		changedBounds.width = grey.cols();
+		changedBounds.height = grey.rows();
+	}
+
+	/**
+	 * @return the fraction of the grid's cells that changed in the last update, from 0 to 1
+	 */
+	public double getChangedFraction() {
+		return changedCellCount / (double) changedCells.length;
+	}
+
+	/**
+	 * @return the box around the changed cells, in the last updated image's coordinates. Reused by the next update.
+	 */
+	public Rect getChangedBounds() {
+		return changedBounds;
+	}
+
+	public boolean isCellChanged(int column, int row) {
+		return changedCells[row * GRID_COLUMNS + column];
+	}
+
+	public void setPixelThreshold(int pixelThreshold) {
+		this.pixelThreshold = pixelThreshold;
+	}
+
+	public void setMinChangedFraction(double minChangedFraction) {
+		this.minChangedFraction = minChangedFraction;
+	}
+
+	/**
+	 * Forgets the reference, so the next image counts as changed everywhere.
+	 */
+	public void reset() {
+		hasReference = false;
+	}
+
+	public void release() {
+		small.release();
+		reference.release();
+		difference.release();
+	}
+}
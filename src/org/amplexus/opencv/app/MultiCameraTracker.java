@@ -0,0 +1,178 @@
+package org.amplexus.opencv.app;
+
+import java.awt.BorderLayout;
+import java.awt.GridLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.swing.BoxLayout;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+import org.opencv.core.Core;
+
+/*
+ * Tracks faces on every attached webcam at once.
+ * 
+ * Each webcam gets its own pipeline - a capture thread, a detection thread with its own cascade
+ * classifier (they aren't thread safe) and its own view in a combined window. The detection threads
+ * come from a pool with one thread per camera, so the OS spreads them across the cores. Per-camera
+ * frame rate and detection latency are shown under each view and logged every few seconds.
+ * 
+ * Needs opencv-246.jar and libopencv_java246.so
+ * Runs with -Djava.library.path=/path/to/lib (containing above .so file)
+ */
+public class MultiCameraTracker {
+
+	static final String CASCADE_CLASSIFIER_FILENAME = "/lbpcascade_frontalface.xml"; // Least expensive / least accurate
+	static final int MAX_WEBCAMS = 4;
+	static final long WEBCAM_PROBE_TIMEOUT_MILLIS = 5000;
+	static final int STATS_INTERVAL_MILLIS = 1000;
+	static final int STATS_LOG_INTERVAL = 5;			// Log the stats every this many updates
+
+	private static final Logger log = Logger.getLogger(MultiCameraTracker.class);
+
+	private final List<WebcamDevice> webcams;
+	private final List<WebcamTask> webcamTasks = new ArrayList<WebcamTask>();
+	private final List<JLabel> statsLabels = new ArrayList<JLabel>();
+	private ExecutorService detectionExecutor;
+	private int statsUpdates = 0;
+	private double downscaleFactor;
+	private double targetMillis;
+	private String engineName;
+	private int engineThreads;
+
+	public static void main(final String[] args) throws InterruptedException {
+
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		PropertyConfigurator.configure("log4j.properties");
+		double targetMillis = CommandLineOptions.getDouble(args, "target-ms", 0);
+		String engineName = CommandLineOptions.getString(args, "engine", DetectionEngines.CASCADE);
+		if(targetMillis > 0 && !DetectionEngines.CASCADE.equals(engineName)) {
+			log.error("--target-ms only works with --engine=" + DetectionEngines.CASCADE + " - the quality governor switches cascades, which the parallel engines can't");
+			return;
+		}
+
+		final List<WebcamDevice> webcams = Collections.synchronizedList(new ArrayList<WebcamDevice>());
+		final CountDownLatch probed = new CountDownLatch(1);
+		new WebcamProber(MAX_WEBCAMS, WEBCAM_PROBE_TIMEOUT_MILLIS).probe(new WebcamProber.Listener() {
+			public void webcamDiscovered(WebcamDevice device) {
+			}
+			public void probingFinished(List<WebcamDevice> devices) {
+				webcams.addAll(devices);
+				probed.countDown();
+			}
+		});
+		probed.await();
+		if(webcams.isEmpty()) {
+			log.error("No webcams found");
+			return;
+		}
+		Collections.sort(webcams, new Comparator<WebcamDevice>() {
+			public int compare(WebcamDevice a, WebcamDevice b) {
+				return a.getIndex() - b.getIndex();
+			}
+		});
+
+		final MultiCameraTracker tracker = new MultiCameraTracker(webcams, CommandLineOptions.getDouble(args, "downscale", DetectionPreprocessor.DEFAULT_DOWNSCALE_FACTOR),
+				targetMillis, engineName,
+				CommandLineOptions.getInt(args, "threads", Math.max(1, Runtime.getRuntime().availableProcessors() / webcams.size())));
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				tracker.displayGUI();
+				tracker.startPipelines();
+			}
+		});
+	}
+
+	/**
+	 * @param targetMillis per-frame processing budget for each camera's QualityGovernor, or 0 for fixed quality
+	 * @param engineThreads detection workers per camera, for engines that have them - by default the cores are shared out between the cameras
+	 */
+	private MultiCameraTracker(List<WebcamDevice> webcams, double downscaleFactor, double targetMillis, String engineName, int engineThreads) {
+		this.webcams = webcams;
+		this.downscaleFactor = downscaleFactor;
+		this.targetMillis = targetMillis;
+		this.engineName = engineName;
+		this.engineThreads = engineThreads;
+	}
+
+	/**
+	 * Lays the webcam views out in a roughly square grid, each with its stats underneath.
+	 */
+	private void displayGUI() {
+		int columns = (int) Math.ceil(Math.sqrt(webcams.size()));
+		int rows = (webcams.size() + columns - 1) / columns;
+		JPanel gridPanel = new JPanel(new GridLayout(rows, columns));
+		for(WebcamDevice webcam : webcams) {
+			VideoPanel videoPanel = new VideoPanel(webcam.width, webcam.height);
+			JLabel statsLabel = new JLabel(webcam.toString());
+
+			JPanel cellPanel = new JPanel();
+			cellPanel.setLayout(new BoxLayout(cellPanel, BoxLayout.PAGE_AXIS));
+			cellPanel.add(videoPanel);
+			cellPanel.add(statsLabel);
+			gridPanel.add(cellPanel);
+
+			WebcamTask webcamTask = new WebcamTask(new WebcamFrameSource(webcam.getIndex()), DetectionEngines.create(engineName, CASCADE_CLASSIFIER_FILENAME, engineThreads), 0, videoPanel);
+			webcamTask.getPreprocessor().setDownscaleFactor(downscaleFactor);
+			if(targetMillis > 0)
+				webcamTask.setQualityGovernor(new QualityGovernor(targetMillis, QualityGovernor.levelFor(CASCADE_CLASSIFIER_FILENAME, downscaleFactor)));
+			webcamTasks.add(webcamTask);
+			statsLabels.add(statsLabel);
+		}
+
+		JPanel contentPanel = new JPanel(new BorderLayout());
+		contentPanel.add(gridPanel, BorderLayout.CENTER);
+
+		JFrame mainFrame = new JFrame();
+		mainFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		mainFrame.setContentPane(contentPanel);
+		mainFrame.pack();
+		mainFrame.setLocationRelativeTo(null);
+		mainFrame.setTitle("Multi Camera Face Tracker - " + webcams.size() + " webcam(s)");
+		mainFrame.setVisible(true);
+	}
+
+	/**
+	 * Runs each webcam's detection loop on its own thread. SwingWorker.execute() would share a pool
+	 * capped at ten threads with every other SwingWorker in the app (the XBee tasks included), so we
+	 * give the pipelines a pool of their own instead.
+	 */
+	private void startPipelines() {
+		detectionExecutor = Executors.newFixedThreadPool(webcamTasks.size(), new DaemonThreadFactory("Detection"));
+		for(WebcamTask webcamTask : webcamTasks)
+			detectionExecutor.execute(webcamTask);
+
+		new Timer(STATS_INTERVAL_MILLIS, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				updateStats();
+			}
+		}).start();
+	}
+
+	private void updateStats() {
+		boolean logStats = ++statsUpdates % STATS_LOG_INTERVAL == 0;
+		for(int i = 0; i < webcamTasks.size(); i++) {
+			WebcamTask webcamTask = webcamTasks.get(i);
+			String report = webcamTask.getStats().report() + ", dropped " + webcamTask.exchange.getDroppedCount() + ", " + webcamTask.videoPanel.report();
+			if(webcamTask.getQualityGovernor() != null)
+				report += " - " + webcamTask.getQualityGovernor().getStatus();
+			statsLabels.get(i).setText(report);
+			if(logStats)
+				log.info(report);
+		}
+	}
+}
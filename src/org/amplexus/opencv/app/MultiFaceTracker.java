@@ -0,0 +1,236 @@
+package org.amplexus.opencv.app;
+
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+
+/**
+ * Follows every face from frame to frame, giving each one a stable ID, and picks which one the
+ * camera should follow.
+ * 
+ * Choosing the biggest face afresh every frame made the camera flip between two people of about
+ * the same size. Here each detection is matched to an existing track - by overlap (intersection over
+ * union), or failing that by the nearest centre - and the target stays on its track until that face
+ * has been gone for MAX_MISSES frames, or another face becomes more than SWITCH_AREA_RATIO times
+ * bigger. A new track only becomes a candidate once it has been seen MIN_HITS times, so a one-frame
+ * false detection never steals the camera.
+ * 
+ * There are at most MAX_TRACKS tracks, allocated up front and recycled, so matching is a fixed
+ * number of comparisons per detection and allocates nothing. Not thread safe.
+ */
+public class MultiFaceTracker {
+
+	public static final int MAX_TRACKS = 16;
+	static final double MIN_OVERLAP = 0.3;			// Intersection over union to count as the same face
+	static final double MAX_CENTRE_DISTANCE = 0.5;	// Or centres within this fraction of the face's width
+	static final int MIN_HITS = 3;
+	static final int MAX_MISSES = 10;
+	static final double SWITCH_AREA_RATIO = 2.0;
+	static final Scalar TRACK_COLOUR = new Scalar(255, 255, 0);	// Cyan
+	static final Scalar TARGET_COLOUR = new Scalar(0, 0, 255);	// Red
+
+	/**
+	 * One face being followed.
+	 */
+	public static class Track {
+		int id;
+		String label;
+		final Rect box = new Rect();
+		int hits;
+		int misses;
+		boolean matched;
+
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 * @return "#" and the ID, for drawing
+		 */
+		public String getLabel() {
+			return label;
+		}
+
+		/**
+		 * @return where the face was last seen. Reused, so copy it if you need to keep it.
+		 */
+		public Rect getBox() {
+			return box;
+		}
+
+		/**
+		 * @return true once the face has been seen often enough to be trusted
+		 */
+		public boolean isConfirmed() {
+			return hits >= MIN_HITS;
+		}
+
+		/**
+		 * @return true if the face was detected in the latest frame
+		 */
+		public boolean isMatched() {
+			return matched;
+		}
+	}
+
+	private final Track[] tracks = new Track[MAX_TRACKS];
+	private int trackCount = 0;
+	private int nextId = 1;
+	private int targetId = -1;
+	private long targetSwitches = 0;
+
+	public MultiFaceTracker() {
+		for(int i = 0; i < MAX_TRACKS; i++)
+			tracks[i] = new Track();
+	}
+
+	/**
+	 * Matches the detector's latest faces to the tracks, starts tracks for new faces, drops tracks
+	 * whose faces have been gone too long, and re-picks the target if needed.
+	 */
+	public void update(FaceDetector faceDetector) {
+		for(int i = 0; i < trackCount; i++)
+			tracks[i].matched = false;
+		for(int i = 0; i < faceDetector.getFaceCount(); i++) {
+			Rect face = faceDetector.getFace(i);
+			Track track = findMatch(face);
+			if(track == null) {
+				if(trackCount == MAX_TRACKS)
+					continue;
+				track = tracks[trackCount++];
+				track.id = nextId++;
+				track.label = "#" + track.id;
+				track.hits = 0;
+			}
+			track.box.x = face.x;
+			track.box.y = face.y;
+			track.box.width = face.width;
+			track.box.height = face.height;
+			track.hits++;
+			track.misses = 0;
+			track.matched = true;
+		}
+		for(int i = 0; i < trackCount; i++) {
+			Track track = tracks[i];
+			if(!track.matched && ++track.misses > MAX_MISSES) {
+				// Swap the dead track to the end so its object gets reused
+				tracks[i] = tracks[--trackCount];
+				tracks[trackCount] = track;
+				i--;
+			}
+		}
+		selectTarget();
+	}
+
+	/**
+	 * @return the unmatched track that best fits the face, or null if none is close enough
+	 */
+	private Track findMatch(Rect face) {
+		Track bestOverlap = null;
+		double bestOverlapScore = MIN_OVERLAP;
+		Track nearest = null;
+		double nearestDistance = Double.MAX_VALUE;
+		double faceCentreX = face.x + face.width / 2.0;
+		double faceCentreY = face.y + face.height / 2.0;
+		for(int i = 0; i < trackCount; i++) {
+			Track track = tracks[i];
+			if(track.matched)
+				continue;
+			double overlap = intersectionOverUnion(face, track.box);
+			if(overlap > bestOverlapScore) {
+				bestOverlapScore = overlap;
+				bestOverlap = track;
+			}
+			double dx = track.box.x + track.box.width / 2.0 - faceCentreX;
+			double dy = track.box.y + track.box.height / 2.0 - faceCentreY;
+			double distance = Math.sqrt(dx * dx + dy * dy);
+			if(distance < nearestDistance && distance < MAX_CENTRE_DISTANCE * Math.max(face.width, track.box.width)) {
+				nearestDistance = distance;
+				nearest = track;
+			}
+		}
+		return bestOverlap != null ? bestOverlap : nearest;
+	}
+
+	static double intersectionOverUnion(Rect a, Rect b) {
+		int left = Math.max(a.x, b.x);
+		int top = Math.max(a.y, b.y);
+		int right = Math.min(a.x + a.width, b.x + b.width);
+		int bottom = Math.min(a.y + a.height, b.y + b.height);
+		if(right <= left || bottom <= top)
+			return 0;
+		double intersection = (double) (right - left) * (bottom - top);
+		return intersection / (a.area() + b.area() - intersection);
+	}
+
+	/**
+	 * Sticks with the current target while it lasts, unless another confirmed face has become much
+	 * bigger. Otherwise picks the biggest confirmed face.
+	 */
+	private void selectTarget() {
+		Track target = getTarget();
+		Track biggest = null;
+		for(int i = 0; i < trackCount; i++) {
+			Track track = tracks[i];
+			if(track.isConfirmed() && (biggest == null || track.box.area() > biggest.box.area()))
+				biggest = track;
+		}
+		if(biggest == null || biggest == target)
+			return;
+		if(target == null || biggest.box.area() > target.box.area() * SWITCH_AREA_RATIO) {
+			targetId = biggest.id;
+			targetSwitches++;
+		}
+	}
+
+	/**
+	 * @return the track the camera should follow, or null if there's none
+	 */
+	public Track getTarget() {
+		for(int i = 0; i < trackCount; i++) {
+			if(tracks[i].id == targetId)
+				return tracks[i];
+		}
+		return null;
+	}
+
+	/**
+	 * @return the target's face if it was detected in the latest frame, otherwise null (so a FaceFollower
+	 * predicts where it has gone rather than steering towards where it was)
+	 */
+	public Rect getTargetFace() {
+		Track target = getTarget();
+		return target != null && target.matched ? target.box : null;
+	}
+
+	/**
+	 * Makes the camera follow the given track, e.g. one the user clicked on.
+	 * 
+	 * @return false if there's no such track
+	 */
+	public boolean setTarget(int trackId) {
+		for(int i = 0; i < trackCount; i++) {
+			if(tracks[i].id == trackId) {
+				if(targetId != trackId)
+					targetSwitches++;
+				targetId = trackId;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int getTrackCount() {
+		return trackCount;
+	}
+
+	public Track getTrack(int i) {
+		return tracks[i];
+	}
+
+	/**
+	 * @return how many times the target has changed - each one probably cost some servo moves
+	 */
+	public long getTargetSwitchCount() {
+		return targetSwitches;
+	}
+}
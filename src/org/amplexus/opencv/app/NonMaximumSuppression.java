@@ -0,0 +1,65 @@
+package org.amplexus.opencv.app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.opencv.core.Rect;
+
+/**
+ * Merges duplicate detections of the same face - e.g. the same face found by two overlapping tiles,
+ * or by two size bands.
+ * 
+ * Greedy: the biggest rectangle wins, and any smaller one that overlaps it by more than the threshold
+ * is dropped. Overlap is measured as intersection over the smaller rectangle's area rather than over
+ * the union, because a face cut off at a tile border shows up as a smaller box inside the full one.
+ */
+public class NonMaximumSuppression {
+
+	public static final double DEFAULT_OVERLAP_THRESHOLD = 0.5;
+
+	private static final Comparator<Rect> BIGGEST_FIRST = new Comparator<Rect>() {
+		public int compare(Rect a, Rect b) {
+			return Double.compare(b.area(), a.area());
+		}
+	};
+
+	private NonMaximumSuppression() {
+	}
+
+	/**
+	 * @return the rectangles that survive, biggest first
+	 */
+	public static List<Rect> suppress(List<Rect> rects, double overlapThreshold) {
+		List<Rect> sorted = new ArrayList<Rect>(rects);
+		Collections.sort(sorted, BIGGEST_FIRST);
+		List<Rect> kept = new ArrayList<Rect>(sorted.size());
+		for(Rect candidate : sorted) {
+			boolean duplicate = false;
+			for(Rect keeper : kept) {
+				if(overlap(candidate, keeper) > overlapThreshold) {
+					duplicate = true;
+					break;
+				}
+			}
+			if(!duplicate)
+				kept.add(candidate);
+		}
+		return kept;
+	}
+
+	/**
+	 * @return the area of the intersection divided by the area of the smaller rectangle, from 0 to 1
+	 */
+	static double overlap(Rect a, Rect b) {
+		int left = Math.max(a.x, b.x);
+		int top = Math.max(a.y, b.y);
+		int right = Math.min(a.x + a.width, b.x + b.width);
+		int bottom = Math.min(a.y + a.height, b.y + b.height);
+		if(right <= left || bottom <= top)
+			return 0;
+		double intersection = (double) (right - left) * (bottom - top);
+		return intersection / Math.min(a.area(), b.area());
+	}
+}
@@ -0,0 +1,229 @@
+package org.amplexus.opencv.app;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.xbee.api.XBeeException;
+
+/**
+ * Sends pan/tilt moves to the robot from a thread of its own, without Swing, always sending the
+ * newest move for each axis.
+ * 
+ * Each axis has a single slot mailbox. The controller posts a move into it whenever it decides on
+ * one, overwriting - and counting as superseded - any move for that axis that hasn't gone out yet.
+ * Absolute moves and steps have mailboxes of their own, and a step's slot holds its speed as well as
+ * its command, so what the sender takes out always says how to encode it. The sender thread waits
+ * for the link to be free, takes whatever is in both slots and sends it as one combined command. So on a slow link the head gets the decision from the latest frame rather
+ * than one from several frames ago, and the controller never waits for the radio.
+ * 
+ * The GUIs send their one-off commands (ping, reset...) with an XBeeCommunicatorTask; the two take
+ * turns on the link.
+ */
+public class PanTiltCommander {
+
+	/**
+	 * Told about each absolute move the robot has acknowledged, or that couldn't be delivered, on the
+	 * commander's thread.
+	 */
+	public interface Listener {
+		/**
+		 * @param panAngle the pan angle sent, or NONE if the pan was left alone
+		 * @param tiltAngle likewise for the tilt
+		 * @param sentNanos when the acknowledgement came back, from System.nanoTime()
+		 */
+		void moveSent(int panAngle, int tiltAngle, long sentNanos);
+
+		/**
+		 * @param panAngle the pan angle that wasn't acknowledged, or NONE if the pan was left alone
+		 * @param tiltAngle likewise for the tilt
+		 */
+		void moveFailed(int panAngle, int tiltAngle);
+	}
+
+	public static final int NONE = -1;
+	static final long IDLE_PARK_MILLIS = 100;
+
+	private static final Logger log = Logger.getLogger(PanTiltCommander.class);
+
+	private final Mailbox absoluteMoves = new Mailbox();	// Angles
+	private final Mailbox steps = new Mailbox();			// Step commands, with the speed in the upper bits
+	private final AtomicLong postedCount = new AtomicLong();
+	private final AtomicLong sentCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong supersededPanCount = new AtomicLong();
+	private final AtomicLong supersededTiltCount = new AtomicLong();
+	private final Thread sender;
+	private volatile String commPort;
+	private volatile int baudRate;
+	private volatile Listener listener = null;
+	private volatile boolean closed = false;
+
+	public PanTiltCommander(String commPort, int baudRate) {
+		this.commPort = commPort;
+		this.baudRate = baudRate;
+		sender = new DaemonThreadFactory("pan-tilt").newThread(new Runnable() {
+			public void run() {
+				sendLoop();
+			}
+		});
+		sender.start();
+	}
+
+	/**
+	 * Posts absolute moves, replacing any that haven't been sent yet.
+	 * 
+	 * @param panAngle the angle to pan to, or NONE to leave the pan (and any pending pan move) alone
+	 * @param tiltAngle likewise for the tilt
+	 */
+	public void moveTo(int panAngle, int tiltAngle) {
+		post(absoluteMoves, panAngle, tiltAngle);
+	}
+
+	/**
+	 * Posts stepping moves, replacing any that haven't been sent yet.
+	 * 
+	 * @param panCommand CMD_PAN_LEFT or CMD_PAN_RIGHT, or NONE
+	 * @param tiltCommand CMD_TILT_UP or CMD_TILT_DOWN, or NONE
+	 */
+	public void step(int panCommand, int tiltCommand, int speed) {
+		post(steps, withSpeed(panCommand, speed), withSpeed(tiltCommand, speed));
+	}
+
+	private static int withSpeed(int stepCommand, int speed) {
+		return stepCommand == NONE ? NONE : speed << 8 | stepCommand;
+	}
+
+	private void post(Mailbox mailbox, int pan, int tilt) {
+		if(pan == NONE && tilt == NONE)
+			return;
+		postedCount.incrementAndGet();
+		if(pan != NONE && mailbox.pan.getAndSet(pan) != NONE)
+			supersededPanCount.incrementAndGet();
+		if(tilt != NONE && mailbox.tilt.getAndSet(tilt) != NONE)
+			supersededTiltCount.incrementAndGet();
+		LockSupport.unpark(sender);
+	}
+
+	private void sendLoop() {
+		while(!closed) {
+			int pan = absoluteMoves.pan.getAndSet(NONE);
+			int tilt = absoluteMoves.tilt.getAndSet(NONE);
+			if(pan != NONE || tilt != NONE) {
+				Listener listener = this.listener;
+				boolean acknowledged = send(XBeeCommunicatorTask.encodePanTiltTo(pan, tilt));
+				if(listener != null) {
+					if(acknowledged)
+						listener.moveSent(pan, tilt, System.nanoTime());
+					else
+						listener.moveFailed(pan, tilt);
+				}
+				continue;
+			}
+			pan = steps.pan.getAndSet(NONE);
+			tilt = steps.tilt.getAndSet(NONE);
+			if(pan != NONE || tilt != NONE) {
+				int speed = (pan != NONE ? pan : tilt) >> 8;	// Normally both were posted together, at the same speed
+				send(XBeeCommunicatorTask.encodePanTiltStep(pan == NONE ? NONE : pan & 0xFF, tilt == NONE ? NONE : tilt & 0xFF, speed));
+				continue;
+			}
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(IDLE_PARK_MILLIS));
+		}
+	}
+
+	/**
+	 * @return true if the robot acknowledged the command
+	 */
+	private boolean send(int[] payload) {
+		try {
+			if(XBeeCommunicatorTask.send(payload, commPort, baudRate)) { // Moves posted meanwhile pile up in the slots - only the newest survive
+				sentCount.incrementAndGet();
+				return true;
+			}
+			failedCount.incrementAndGet();
+			log.warn(XBeeCommunicatorTask.stringifiedCommandName(payload[0]) + " wasn't acknowledged");
+		} catch (XBeeException e) {
+			failedCount.incrementAndGet();
+			log.error("Error executing: " + XBeeCommunicatorTask.stringifiedCommandName(payload[0]) + ": " + e.getMessage(), e);
+		}
+		return false;
+	}
+
+	/**
+	 * @param listener told about each absolute move once it has been acknowledged or has failed, e.g. a FaceFollower so its axes know where the head really is
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Takes effect from the next move sent.
+	 */
+	public void setCommPort(String commPort, int baudRate) {
+		this.commPort = commPort;
+		this.baudRate = baudRate;
+	}
+
+	/**
+	 * @return the number of moves posted
+	 */
+	public long getPostedCount() {
+		return postedCount.get();
+	}
+
+	/**
+	 * @return the number of combined commands the robot's XBee acknowledged
+	 */
+	public long getSentCount() {
+		return sentCount.get();
+	}
+
+	/**
+	 * @return the number of combined commands that couldn't be sent or weren't acknowledged
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * @return the number of pan moves replaced by a newer one before they could be sent
+	 */
+	public long getSupersededPanCount() {
+		return supersededPanCount.get();
+	}
+
+	/**
+	 * @return the number of tilt moves replaced by a newer one before they could be sent
+	 */
+	public long getSupersededTiltCount() {
+		return supersededTiltCount.get();
+	}
+
+	/**
+	 * @return a one line summary for the log
+	 */
+	public String getStatus() {
+		return "pan/tilt: posted " + postedCount.get() + ", sent " + sentCount.get() + ", failed " + failedCount.get()
+				+ ", superseded pan " + supersededPanCount.get() + " / tilt " + supersededTiltCount.get();
+	}
+
+	/**
+	 * Lets the command that's going out finish, and sends no more.
+	 */
+	public void close() throws InterruptedException {
+		closed = true;
+		LockSupport.unpark(sender);
+		sender.join(TimeUnit.SECONDS.toMillis(1));
+	}
+
+	/**
+	 * The pending move for each axis, or NONE.
+	 */
+	private static class Mailbox {
+		final AtomicInteger pan = new AtomicInteger(NONE);
+		final AtomicInteger tilt = new AtomicInteger(NONE);
+	}
+}
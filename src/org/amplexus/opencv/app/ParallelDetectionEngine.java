@@ -0,0 +1,114 @@
+package org.amplexus.opencv.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.objdetect.CascadeClassifier;
+
+/**
+ * Common plumbing for engines that split one detection into pieces and run them on a ForkJoinPool.
+ * 
+ * CascadeClassifier isn't thread safe, so the engine borrows one copy of the cascade per worker from
+ * the CascadeClassifierPool up front, and each task checks one out while it runs. They aren't tied to
+ * the pool's threads, which the ForkJoinPool retires when idle and replaces later - so however often
+ * that happens no more cascades are parsed, and they are all handed back when the engine is released.
+ * Subclasses build a list of DetectionTasks per frame; the faces they find are merged with
+ * NonMaximumSuppression, since neighbouring pieces usually find some of the same faces.
+ */
+public abstract class ParallelDetectionEngine implements DetectionEngine {
+
+	protected static final Size NO_SIZE = new Size();
+
+	private final String cascadeResource;
+	private final ForkJoinPool pool;
+	private final List<CascadeClassifier> borrowedClassifiers = new ArrayList<CascadeClassifier>();
+	private final BlockingQueue<CascadeClassifier> idleClassifiers = new LinkedBlockingQueue<CascadeClassifier>();	// The borrowed ones not in use by a task
+
+	/**
+	 * @param cascadeResource the cascade on the classpath, e.g. FaceDetector.LBP_CASCADE
+	 * @param threads how many detection workers to run
+	 */
+	protected ParallelDetectionEngine(String cascadeResource, int threads) {
+		this.cascadeResource = cascadeResource;
+		this.pool = new ForkJoinPool(Math.max(1, threads));
+		for(int i = 0; i < pool.getParallelism(); i++)
+			borrowedClassifiers.add(CascadeClassifierPool.getShared().acquire(cascadeResource));
+		idleClassifiers.addAll(borrowedClassifiers);
+	}
+
+	public int getThreads() {
+		return pool.getParallelism();
+	}
+
+	@Override
+	public void detectMultiScale(Mat image, MatOfRect objects) {
+		detectMultiScale(image, objects, FaceDetector.SCALE_FACTOR, FaceDetector.MIN_NEIGHBOURS, 0, NO_SIZE, NO_SIZE);
+	}
+
+	/**
+	 * Runs the tasks on the pool, waits for them all and puts the merged faces in objects.
+	 */
+	protected void runAndMerge(List<? extends DetectionTask> tasks, MatOfRect objects) {
+		for(DetectionTask task : tasks)
+			pool.execute(task);
+		List<Rect> found = new ArrayList<Rect>();
+		for(DetectionTask task : tasks)
+			found.addAll(task.join());
+		List<Rect> merged = NonMaximumSuppression.suppress(found, NonMaximumSuppression.DEFAULT_OVERLAP_THRESHOLD);
+		if(merged.isEmpty())
+			objects.release();	// fromList() leaves the previous contents alone when given nothing
+		else
+			objects.fromList(merged);
+	}
+
+	@Override
+	public void release() {
+		pool.shutdown();
+		for(CascadeClassifier classifier : borrowedClassifiers)
+			CascadeClassifierPool.getShared().release(cascadeResource, classifier);
+		borrowedClassifiers.clear();
+		idleClassifiers.clear();
+	}
+
+	/**
+	 * @return true if no upper face size limit was given
+	 */
+	protected static boolean isUnbounded(Size maxSize) {
+		return maxSize.width <= 0 || maxSize.height <= 0;
+	}
+
+	/**
+	 * One piece of a detection, run with a cascade checked out for the task's own use. Returns its
+	 * faces in the coordinates of the image given to detectMultiScale.
+	 */
+	protected abstract class DetectionTask extends RecursiveTask<List<Rect>> {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected final List<Rect> compute() {
+			CascadeClassifier classifier;
+			try {
+				classifier = idleClassifiers.take();	// There's one per worker, so one is free unless the pool is replacing a retiring worker
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return new ArrayList<Rect>();
+			}
+			try {
+				return detect(classifier);
+			} finally {
+				idleClassifiers.offer(classifier);
+			}
+		}
+
+		protected abstract List<Rect> detect(CascadeClassifier classifier);
+	}
+}
@@ -0,0 +1,69 @@
+package org.amplexus.opencv.app;
+
+/**
+ * A textbook PID controller: output = kp * error + ki * integral(error) + kd * d(error)/dt, clamped to
+ * [outputMin, outputMax].
+ * 
+ * The integral is only accumulated while the output isn't saturated, so it doesn't wind up during a
+ * long move and overshoot at the end of it. The derivative is taken on the error, and skipped on the
+ * first update after a reset since there is nothing to differentiate against.
+ */
+public class PidController {
+
+	private final double kp;
+	private final double ki;
+	private final double kd;
+	private final double outputMin;
+	private final double outputMax;
+	private double integral = 0;
+	private double lastError = 0;
+	private boolean started = false;
+
+	public PidController(double kp, double ki, double kd, double outputMin, double outputMax) {
+		this.kp = kp;
+		this.ki = ki;
+		this.kd = kd;
+		this.outputMin = outputMin;
+		this.outputMax = outputMax;
+	}
+
+	/**
+	 * @param error how far off the target we are now
+	 * @param dtSeconds the time since the previous update
+	 * @return the correction to apply
+	 */
+	public double update(double error, double dtSeconds) {
+		return update(error, dtSeconds, true);
+	}
+
+	/**
+	 * As update(), but with the integral optionally held where it is, e.g. while a correction is
+	 * already on its way and the error hasn't had a chance to shrink.
+	 * 
+	 * @param integrate false to leave the integral alone this time
+	 */
+	public double update(double error, double dtSeconds, boolean integrate) {
+		double derivative = started && dtSeconds > 0 ? (error - lastError) / dtSeconds : 0;
+		double candidateIntegral = integrate ? integral + error * Math.max(0, dtSeconds) : integral;
+		double output = kp * error + ki * candidateIntegral + kd * derivative;
+		if(output > outputMax) {
+			output = outputMax;
+		} else if(output < outputMin) {
+			output = outputMin;
+		} else {
+			integral = candidateIntegral; // Not saturated - safe to integrate
+		}
+		lastError = error;
+		started = true;
+		return output;
+	}
+
+	/**
+	 * Forgets the integral and the previous error, e.g. when the face is lost.
+	 */
+	public void reset() {
+		integral = 0;
+		lastError = 0;
+		started = false;
+	}
+}
@@ -0,0 +1,74 @@
+package org.amplexus.opencv.app;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frame rate and latency figures for one tracking pipeline, for sizing how many cameras a host can handle.
+ * 
+ * The detection thread records every frame it processes; a reporting thread (a Swing timer, a log
+ * line) periodically calls report(), which summarises the frames since the previous report.
+ */
+public class PipelineStats {
+
+	private final String name;
+	private final String activity;				// What the timed work is called in the report
+	private final AtomicLong totalFrames = new AtomicLong();
+	private final AtomicLong windowFrames = new AtomicLong();
+	private final AtomicLong windowDetectionNanos = new AtomicLong();
+	private final AtomicLong windowMaxDetectionNanos = new AtomicLong();
+	private final AtomicLong windowLatencyNanos = new AtomicLong();
+	private long windowStartNanos = System.nanoTime();
+
+	public PipelineStats(String name) {
+		this(name, "detect");
+	}
+
+	/**
+	 * @param activity what the timed work is called in the report, e.g. "process" for a FramePipeline stage
+	 */
+	public PipelineStats(String name, String activity) {
+		this.name = name;
+		this.activity = activity;
+	}
+
+	/**
+	 * Called by the detection thread once per frame.
+	 * 
+	 * @param detectionNanos how long detection took
+	 * @param latencyNanos how long from the frame being captured to its detection result being available
+	 */
+	public void frameProcessed(long detectionNanos, long latencyNanos) {
+		totalFrames.incrementAndGet();
+		windowFrames.incrementAndGet();
+		windowDetectionNanos.addAndGet(detectionNanos);
+		windowLatencyNanos.addAndGet(latencyNanos);
+		long max = windowMaxDetectionNanos.get();
+		while(detectionNanos > max && !windowMaxDetectionNanos.compareAndSet(max, detectionNanos))
+			max = windowMaxDetectionNanos.get();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getTotalFrames() {
+		return totalFrames.get();
+	}
+
+	/**
+	 * Summarises the frames processed since the last call and starts a new reporting window.
+	 */
+	public synchronized String report() {
+		long now = System.nanoTime();
+		long frames = windowFrames.getAndSet(0);
+		long detectionNanos = windowDetectionNanos.getAndSet(0);
+		long latencyNanos = windowLatencyNanos.getAndSet(0);
+		long maxDetectionNanos = windowMaxDetectionNanos.getAndSet(0);
+		double seconds = (now - windowStartNanos) / 1e9;
+		windowStartNanos = now;
+		if(frames == 0)
+			return String.format("%s: 0.0 fps", name);
+		return String.format("%s: %.1f fps, %s %.1f ms avg / %.1f ms max, latency %.1f ms",
+				name, frames / seconds, activity, detectionNanos / 1e6 / frames, maxDetectionNanos / 1e6, latencyNanos / 1e6 / frames);
+	}
+}
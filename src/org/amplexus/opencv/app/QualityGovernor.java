@@ -0,0 +1,189 @@
+package org.amplexus.opencv.app;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.opencv.objdetect.CascadeClassifier;
+
+/**
+ * Trades detection quality for speed to hold a per-frame processing budget.
+ * 
+ * The governor steps through a ladder of levels, from the most accurate (the default Haar cascade on
+ * the full size frame) to the cheapest (the LBP cascade on a quarter size frame, only processing every
+ * third frame). It keeps a moving average of the processing cost per captured frame; when that goes
+ * over the target it steps down a level, and when there is plenty of headroom it steps back up. After
+ * each change it waits for the average to settle before changing again, so it doesn't oscillate.
+ * 
+ * Every cascade on the ladder is borrowed before the first frame is processed, so changing level
+ * never stops the stream to parse one. Switching cascade needs the plain CascadeDetectionEngine, so
+ * the governor can't be used with the parallel engines.
+ * 
+ * Called from the detection thread; getStatus() may be called from any thread.
+ */
+public class QualityGovernor {
+
+	/**
+	 * One rung of the quality ladder.
+	 */
+	public static class Level {
+		final String name;
+		final String cascade;
+		final double downscaleFactor;
+		final int frameSkip;				// Frames skipped between processed frames
+
+		Level(String name, String cascade, double downscaleFactor, int frameSkip) {
+			this.name = name;
+			this.cascade = cascade;
+			this.downscaleFactor = downscaleFactor;
+			this.frameSkip = frameSkip;
+		}
+
+		@Override
+		public String toString() {
+			return name + " at 1/" + (int) downscaleFactor + (frameSkip == 0 ? "" : ", every " + (frameSkip + 1) + " frames");
+		}
+	}
+
+	static final Level[] LEVELS = {
+		new Level("Haar default", FaceDetector.HAAR_DEFAULT_CASCADE, 1, 0),	// Most expensive / most accurate
+		new Level("Haar alt", FaceDetector.HAAR_ALT_CASCADE, 1, 0),
+		new Level("Haar alt", FaceDetector.HAAR_ALT_CASCADE, 2, 0),
+		new Level("LBP", FaceDetector.LBP_CASCADE, 2, 0),
+		new Level("LBP", FaceDetector.LBP_CASCADE, 3, 0),
+		new Level("LBP", FaceDetector.LBP_CASCADE, 4, 0),
+		new Level("LBP", FaceDetector.LBP_CASCADE, 4, 1),
+		new Level("LBP", FaceDetector.LBP_CASCADE, 4, 2),					// Least expensive / least accurate
+	};
+
+	public static final double DEFAULT_TARGET_MILLIS = 33.0;	// 30 frames/sec
+	static final double SMOOTHING = 0.1;				// Weight of the newest sample in the moving average
+	static final double HEADROOM = 0.6;					// Step up when the average is below this fraction of the target
+	static final int SETTLE_FRAMES = 15;				// Processed frames to wait after a change before changing again
+
+	private static final Logger log = Logger.getLogger(QualityGovernor.class);
+
+	private final double targetMillis;
+	private final Map<String, CascadeClassifier> classifiers = new HashMap<String, CascadeClassifier>();
+	private final Map<String, CascadeClassifier> borrowedClassifiers = new HashMap<String, CascadeClassifier>();	// The ones we got from the pool, to hand back
+	private volatile int level;
+	private volatile double averageMillis = 0;
+	private int framesSinceChange = 0;
+	private long frameNumber = 0;
+
+	/**
+	 * @param targetMillis the processing budget per captured frame
+	 * @param initialLevel the index into LEVELS to start at
+	 */
+	public QualityGovernor(double targetMillis, int initialLevel) {
+		this.targetMillis = targetMillis;
+		this.level = Math.max(0, Math.min(LEVELS.length - 1, initialLevel));
+	}
+
+	/**
+	 * Seeds the governor with a cascade that has already been loaded, so it doesn't load it again.
+	 */
+	public void addClassifier(String cascade, CascadeClassifier classifier) {
+		classifiers.put(cascade, classifier);
+	}
+
+	/**
+	 * Borrows every cascade the ladder uses that the governor hasn't already been given, so no level
+	 * change has to load one. Called on the detection thread before the first frame.
+	 */
+	public void preloadClassifiers() {
+		for(Level each : LEVELS) {
+			if(!classifiers.containsKey(each.cascade))
+				borrow(each.cascade);
+		}
+	}
+
+	private CascadeClassifier borrow(String cascade) {
+		CascadeClassifier classifier = CascadeClassifierPool.getShared().acquire(cascade);
+		classifiers.put(cascade, classifier);
+		borrowedClassifiers.put(cascade, classifier);
+		return classifier;
+	}
+
+	/**
+	 * @return the index into LEVELS of the first level that uses the given cascade, for picking an initial level
+	 */
+	public static int levelFor(String cascade, double downscaleFactor) {
+		for(int i = 0; i < LEVELS.length; i++) {
+			if(LEVELS[i].cascade.equals(cascade) && LEVELS[i].downscaleFactor >= downscaleFactor)
+				return i;
+		}
+		return LEVELS.length / 2;
+	}
+
+	/**
+	 * Called once per captured frame.
+	 * 
+	 * @return false if this frame should be skipped to save time
+	 */
+	public boolean shouldProcess() {
+		return frameNumber++ % (LEVELS[level].frameSkip + 1) == 0;
+	}
+
+	/**
+	 * Records how long a processed frame took, and steps the level up or down if needed.
+	 * 
+	 * @return true if the level changed and needs applying to the detector
+	 */
+	public boolean frameProcessed(long processingNanos) {
+		double costMillis = processingNanos / 1e6 / (LEVELS[level].frameSkip + 1);
+		averageMillis = averageMillis == 0 ? costMillis : averageMillis + SMOOTHING * (costMillis - averageMillis);
+		if(++framesSinceChange < SETTLE_FRAMES)
+			return false;
+		if(averageMillis > targetMillis && level < LEVELS.length - 1) {
+			changeLevel(level + 1, "over");
+			return true;
+		}
+		if(averageMillis < targetMillis * HEADROOM && level > 0) {
+			changeLevel(level - 1, "well under");
+			return true;
+		}
+		return false;
+	}
+
+	private void changeLevel(int newLevel, String reason) {
+		log.info(String.format("Averaging %.1f ms/frame, %s the %.0f ms target - quality level %d (%s) -> %d (%s)",
+				averageMillis, reason, targetMillis, level, LEVELS[level], newLevel, LEVELS[newLevel]));
+		level = newLevel;
+		framesSinceChange = 0;
+	}
+
+	/**
+	 * Puts the current level's cascade and downscale factor into effect on the detector.
+	 */
+	public void apply(FaceDetector faceDetector) {
+		Level current = LEVELS[level];
+		CascadeClassifier classifier = classifiers.get(current.cascade);
+		if(classifier == null)
+			classifier = borrow(current.cascade); // Only if preloadClassifiers() wasn't called
+		faceDetector.setClassifier(classifier);
+		faceDetector.getPreprocessor().setDownscaleFactor(current.downscaleFactor);
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return a one line summary for the GUI status bar
+	 */
+	public String getStatus() {
+		return String.format("Quality %d/%d: %s - %.1f ms/frame (target %.0f ms)", LEVELS.length - 1 - level, LEVELS.length - 1, LEVELS[level], averageMillis, targetMillis);
+	}
+
+	/**
+	 * Hands the cascades the governor borrowed back to the CascadeClassifierPool. The ones given to
+	 * addClassifier() are left to their owner.
+	 */
+	public void release() {
+		for(Map.Entry<String, CascadeClassifier> borrowed : borrowedClassifiers.entrySet())
+			CascadeClassifierPool.getShared().release(borrowed.getKey(), borrowed.getValue());
+		borrowedClassifiers.clear();
+		classifiers.clear();
+	}
+}
@@ -0,0 +1,67 @@
+package org.amplexus.opencv.app;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.log4j.Logger;
+import org.opencv.core.MatOfByte;
+import org.opencv.highgui.Highgui;
+
+/**
+ * Appends each frame to a Motion JPEG file - back to back JPEGs, as read by MjpegFileFrameSource -
+ * so a session can be replayed later through any of the main loops.
+ */
+public class RecordingProcessor implements FrameProcessor {
+
+	private static final Logger log = Logger.getLogger(RecordingProcessor.class);
+
+	private final File file;
+	private final MatOfByte encoded = new MatOfByte();
+	private byte[] buffer = new byte[0];
+	private OutputStream out = null;
+	private boolean failed = false;
+
+	public RecordingProcessor(File file) {
+		this.file = file;
+	}
+
+	@Override
+	public boolean process(Frame frame) {
+		if(failed)
+			return true;
+		try {
+			if(out == null)
+				out = new BufferedOutputStream(new FileOutputStream(file));
+			Highgui.imencode(".jpg", frame.image, encoded);
+			int length = (int) encoded.total();
+			if(buffer.length < length)
+				buffer = new byte[length * 2];
+			encoded.get(0, 0, buffer);
+			out.write(buffer, 0, length);
+		} catch (IOException e) {
+			log.error("Recording to " + file + " failed - no more frames will be recorded", e);
+			failed = true;
+		}
+		return true;
+	}
+
+	@Override
+	public void close() {
+		encoded.release();
+		if(out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.error("Couldn't close " + file, e);
+			}
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "record";
+	}
+}
@@ -0,0 +1,67 @@
+package org.amplexus.opencv.app;
+
+/**
+ * Base class for frame sources that replay recorded material.
+ * 
+ * Recorded frames are available as fast as we can decode them, so replay can either be paced to
+ * a nominal frame rate (to mimic a real camera) or run flat out (to measure how fast the pipeline
+ * can go). A framesPerSecond of zero means as fast as possible.
+ */
+public abstract class ReplayFrameSource implements FrameSource {
+
+	private long frameIntervalNanos = 0;
+	private long nextFrameNanos = 0;
+	private boolean looping = false;
+
+	protected ReplayFrameSource(double framesPerSecond) {
+		setFramesPerSecond(framesPerSecond);
+	}
+
+	/**
+	 * @param framesPerSecond the replay rate, or zero to replay as fast as possible
+	 */
+	public void setFramesPerSecond(double framesPerSecond) {
+		frameIntervalNanos = framesPerSecond > 0 ? (long) (1000000000L / framesPerSecond) : 0;
+		nextFrameNanos = 0;
+	}
+
+	public boolean isRealTime() {
+		return frameIntervalNanos > 0;
+	}
+
+	/**
+	 * @param looping true to start again from the first frame once the last one has been read
+	 */
+	public void setLooping(boolean looping) {
+		this.looping = looping;
+	}
+
+	public boolean isLooping() {
+		return looping;
+	}
+
+	/**
+	 * Blocks until the next frame is due. Subclasses call this from read() before handing out a frame.
+	 * 
+	 * If the consumer falls more than a frame behind we don't try to catch up with a burst of frames,
+	 * we just restart the schedule from now - same as a camera would.
+	 */
+	protected void pace() {
+		if(frameIntervalNanos <= 0)
+			return;
+		long now = System.nanoTime();
+		if(nextFrameNanos == 0 || now - nextFrameNanos > frameIntervalNanos) {
+			nextFrameNanos = now + frameIntervalNanos;
+			return;
+		}
+		long waitNanos = nextFrameNanos - now;
+		if(waitNanos > 0) {
+			try {
+				Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		nextFrameNanos += frameIntervalNanos;
+	}
+}
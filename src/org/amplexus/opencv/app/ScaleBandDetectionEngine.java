@@ -0,0 +1,125 @@
+package org.amplexus.opencv.app;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+/**
+ * Spreads each detection across cores by face size rather than by position: the cascade's image
+ * pyramid is cut into bands, each searched in parallel with detectMultiScale's minSize/maxSize.
+ * 
+ * Band k looks for faces between 1/2^(k+1) and 1/2^k of the image's shorter side; the last band
+ * takes everything smaller. Each band is searched on a copy of the image shrunk until the band's
+ * smallest face is about the cascade's window size, so the large face bands cost next to nothing
+ * and the full resolution pass only has to try the small scales. That keeps frames with small faces
+ * from taking much longer than the rest. Neighbouring bands overlap a little so that faces right on
+ * a band boundary aren't missed, and the duplicates are merged.
+ * 
+ * Not thread safe - the shrunk band images are reused from one detection to the next.
+ */
+public class ScaleBandDetectionEngine extends ParallelDetectionEngine {
+
+	public static final int DEFAULT_BANDS = 4;
+	static final double CASCADE_WINDOW_SIZE = 24;	// The frontal face cascades' training window, in pixels
+	static final double BAND_OVERLAP = 1.2;			// Each band also looks for faces this much bigger than its top
+
+	private final int bands;
+	private final Mat[] bandImages;
+
+	/**
+	 * @param cascadeResource the cascade on the classpath, e.g. FaceDetector.LBP_CASCADE
+	 * @param threads how many detection workers to run - more than the number of bands is wasted
+	 */
+	public ScaleBandDetectionEngine(String cascadeResource, int threads, int bands) {
+		super(cascadeResource, threads);
+		this.bands = Math.max(1, bands);
+		this.bandImages = new Mat[this.bands];
+		for(int i = 0; i < this.bands; i++)
+			bandImages[i] = new Mat();
+	}
+
+	@Override
+	public void detectMultiScale(Mat image, MatOfRect objects, double scaleFactor, int minNeighbors, int flags, Size minSize, Size maxSize) {
+		double shortSide = Math.min(image.cols(), image.rows());
+		double requestedMin = Math.max(minSize.width, minSize.height);
+		double requestedMax = isUnbounded(maxSize) ? Double.MAX_VALUE : Math.min(maxSize.width, maxSize.height);
+		List<BandDetection> tasks = new ArrayList<BandDetection>(bands);
+		// Smallest faces first - the full resolution band takes longest, so it should start first
+		for(int band = bands - 1; band >= 0; band--) {
+			double bandMin = band == bands - 1 ? 0 : shortSide / (1 << (band + 1));
+			double bandMax = band == 0 ? Double.MAX_VALUE : shortSide / (1 << band) * BAND_OVERLAP;
+			bandMin = Math.max(bandMin, requestedMin);
+			bandMax = Math.min(bandMax, requestedMax);
+			if(bandMin > bandMax)
+				continue;
+			double shrink = Math.max(1, bandMin / CASCADE_WINDOW_SIZE);
+			tasks.add(new BandDetection(image, bandImages[band], shrink, scaleFactor, minNeighbors, flags, bandMin, bandMax));
+		}
+		runAndMerge(tasks, objects);
+	}
+
+	@Override
+	public void release() {
+		super.release();
+		for(Mat bandImage : bandImages)
+			bandImage.release();
+	}
+
+	/**
+	 * Searches one size band, on a shrunk copy of the image if the band's faces are big enough.
+	 */
+	private class BandDetection extends DetectionTask {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Mat image;
+		private final Mat bandImage;
+		private final double shrink;
+		private final double scaleFactor;
+		private final int minNeighbors;
+		private final int flags;
+		private final double minFace;
+		private final double maxFace;
+
+		BandDetection(Mat image, Mat bandImage, double shrink, double scaleFactor, int minNeighbors, int flags, double minFace, double maxFace) {
+			this.image = image;
+			this.bandImage = bandImage;
+			this.shrink = shrink;
+			this.scaleFactor = scaleFactor;
+			this.minNeighbors = minNeighbors;
+			this.flags = flags;
+			this.minFace = minFace;
+			this.maxFace = maxFace;
+		}
+
+		@Override
+		protected List<Rect> detect(CascadeClassifier classifier) {
+			Mat searched = image;
+			if(shrink > 1) {
+				Imgproc.resize(image, bandImage, new Size(image.cols() / shrink, image.rows() / shrink), 0, 0, Imgproc.INTER_AREA);
+				searched = bandImage;
+			}
+			double min = minFace / shrink;
+			double max = maxFace == Double.MAX_VALUE ? 0 : maxFace / shrink;
+			MatOfRect bandFaces = new MatOfRect();
+			try {
+				classifier.detectMultiScale(searched, bandFaces, scaleFactor, minNeighbors, flags, new Size(min, min), new Size(max, max));
+				Rect[] faces = bandFaces.toArray();
+				List<Rect> found = new ArrayList<Rect>(faces.length);
+				for(Rect face : faces) {
+					found.add(new Rect((int) Math.round(face.x * shrink), (int) Math.round(face.y * shrink),
+							(int) Math.round(face.width * shrink), (int) Math.round(face.height * shrink)));
+				}
+				return found;
+			} finally {
+				bandFaces.release();
+			}
+		}
+	}
+}
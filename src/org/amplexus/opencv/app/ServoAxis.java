@@ -0,0 +1,160 @@
+package org.amplexus.opencv.app;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Aims one axis of the pan/tilt head with absolute moves (CMD_PAN_TO or CMD_TILT_TO).
+ * 
+ * The face's offset from the centre of the frame is turned into an angle using the camera's field
+ * of view, and a PidController turns that into a correction to the servo's position. The head only
+ * reports where it is by where the picture points, so the position is the last angle we sent; a
+ * gain of 1 with the right field of view centres the face in a single move. Errors inside the dead
+ * band are left alone, and the servo is kept inside [minAngle, maxAngle].
+ * 
+ * For a moment after a move the frames still show the face where it was, and acting on them would
+ * send the head past it. So no new move is worked out from frames captured within settleMillis of
+ * the last one. Likewise, between posting a move and hearing it was acknowledged the error can't
+ * shrink yet, so the integral is held rather than left to wind up.
+ */
+public class ServoAxis {
+
+	public static final int NONE = -1;
+	public static final double DEFAULT_KP = 0.7;
+	public static final double DEFAULT_KI = 0.1;
+	public static final double DEFAULT_KD = 0.02;
+	public static final double DEFAULT_DEAD_BAND_DEGREES = 2;
+	public static final double DEFAULT_MAX_STEP_DEGREES = 30;		// The most one move may turn the head
+	public static final int DEFAULT_MIN_ANGLE = 0;
+	public static final int DEFAULT_MAX_ANGLE = 180;
+	public static final long DEFAULT_SETTLE_MILLIS = 150;
+	public static final double PAN_FIELD_OF_VIEW_DEGREES = 60;		// A typical webcam
+	public static final double TILT_FIELD_OF_VIEW_DEGREES = 45;
+
+	private final int command;
+	private final double fieldOfViewDegrees;
+	private final int direction;
+	private final PidController pid;
+	private final double deadBandDegrees;
+	private final int minAngle;
+	private final int maxAngle;
+	private final long settleNanos;
+	private volatile int position;
+	private volatile long lastMoveNanos;		// Set by moved(), on the commander's thread
+	private volatile boolean hasMoved = false;
+	private long lastUpdateNanos;
+	private boolean hasUpdated = false;
+	private final AtomicInteger pendingAngle = new AtomicInteger(NONE);	// Posted but not yet acknowledged
+	private volatile long moves = 0;
+
+	/**
+	 * An axis with the default gains and limits, starting in the middle of its travel.
+	 * 
+	 * @param command CMD_PAN_TO or CMD_TILT_TO
+	 * @param direction 1 if a face to the right of (or below) the centre needs a bigger angle, -1 if a smaller one
+	 */
+	public ServoAxis(int command, double fieldOfViewDegrees, int direction) {
+		this(command, fieldOfViewDegrees, direction, new PidController(DEFAULT_KP, DEFAULT_KI, DEFAULT_KD, -DEFAULT_MAX_STEP_DEGREES, DEFAULT_MAX_STEP_DEGREES),
+				DEFAULT_DEAD_BAND_DEGREES, DEFAULT_MIN_ANGLE, DEFAULT_MAX_ANGLE, DEFAULT_SETTLE_MILLIS);
+	}
+
+	/**
+	 * @param pid turns the angle error in degrees into a correction in degrees - its output limits are the largest step per move
+	 */
+	public ServoAxis(int command, double fieldOfViewDegrees, int direction, PidController pid, double deadBandDegrees, int minAngle, int maxAngle, long settleMillis) {
+		this.command = command;
+		this.fieldOfViewDegrees = fieldOfViewDegrees;
+		this.direction = direction;
+		this.pid = pid;
+		this.deadBandDegrees = deadBandDegrees;
+		this.minAngle = minAngle;
+		this.maxAngle = maxAngle;
+		this.settleNanos = settleMillis * 1000000L;
+		this.position = (minAngle + maxAngle) / 2;
+	}
+
+	/**
+	 * Works out where the servo should go for the face's offset in one frame.
+	 * 
+	 * @param offsetPixels how far the face is from the centre of the frame, positive to the right or down
+	 * @param frameSize the frame's width for pan, or height for tilt
+	 * @param captureNanos when the frame was captured, from System.nanoTime()
+	 * @return the angle to move to, or NONE to stay put
+	 */
+	public int aim(double offsetPixels, int frameSize, long captureNanos) {
+		double dtSeconds = hasUpdated ? (captureNanos - lastUpdateNanos) / 1e9 : 0;
+		lastUpdateNanos = captureNanos;
+		hasUpdated = true;
+		if(isSettling(captureNanos))
+			return NONE; // Still seeing the picture from before the last move
+		double errorDegrees = direction * offsetPixels / frameSize * fieldOfViewDegrees;
+		if(Math.abs(errorDegrees) < deadBandDegrees) {
+			pid.reset(); // Centred - don't let the integral creep
+			return NONE;
+		}
+		boolean movePending = pendingAngle.get() != NONE;
+		int target = (int) Math.round(position + pid.update(errorDegrees, dtSeconds, !movePending));
+		target = Math.max(minAngle, Math.min(maxAngle, target));
+		return target == position ? NONE : target;
+	}
+
+	/**
+	 * @return true if the frame was captured so soon after the last move that the head may still be turning
+	 */
+	public boolean isSettling(long captureNanos) {
+		return hasMoved && captureNanos - lastMoveNanos < settleNanos;
+	}
+
+	/**
+	 * Records that a move to the given angle has been posted, so the integral is held until it is
+	 * acknowledged or fails. A later post replaces it.
+	 */
+	public void posted(int angle) {
+		pendingAngle.set(angle);
+	}
+
+	/**
+	 * Records that a move to the given angle went out and was acknowledged, so later aims start from
+	 * there. May be called from another thread than aim().
+	 */
+	public void moved(int angle, long nanos) {
+		position = angle;
+		lastMoveNanos = nanos;
+		hasMoved = true;
+		pendingAngle.compareAndSet(angle, NONE); // Unless a newer move has been posted since
+		moves++;
+	}
+
+	/**
+	 * Records that a move to the given angle couldn't be delivered, so the integral is free to act
+	 * again. May be called from another thread than aim().
+	 */
+	public void moveFailed(int angle) {
+		pendingAngle.compareAndSet(angle, NONE);
+	}
+
+	/**
+	 * Forgets the controller's history, e.g. when the face has been lost. The position is kept.
+	 */
+	public void reset() {
+		pid.reset();
+		hasUpdated = false;
+	}
+
+	/**
+	 * @return CMD_PAN_TO or CMD_TILT_TO
+	 */
+	public int getCommand() {
+		return command;
+	}
+
+	/**
+	 * @return the last angle sent
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	public long getMoveCount() {
+		return moves;
+	}
+}
@@ -0,0 +1,51 @@
+package org.amplexus.opencv.app;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Records how long each phase of application startup took and logs a single breakdown line once the
+ * last expected phase has finished. Phases may run concurrently and finish on any thread.
+ */
+public class StartupTimer {
+
+	private final Logger log;
+	private final long startNanos = System.nanoTime();
+	private final Map<String, Long> phaseNanos = new LinkedHashMap<String, Long>();
+	private boolean complete = false;
+
+	/**
+	 * @param log where the breakdown is logged
+	 * @param phases the phases that must all finish before startup is considered complete
+	 */
+	public StartupTimer(Logger log, String... phases) {
+		this.log = log;
+		for(String phase : phases)
+			phaseNanos.put(phase, null);
+	}
+
+	/**
+	 * @return a start time to pass to finished()
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records that the phase, which began at phaseStartNanos, has just finished.
+	 */
+	public synchronized void finished(String phase, long phaseStartNanos) {
+		phaseNanos.put(phase, System.nanoTime() - phaseStartNanos);
+		if(complete || phaseNanos.containsValue(null))
+			return;
+		complete = true;
+		StringBuilder breakdown = new StringBuilder();
+		for(Map.Entry<String, Long> entry : phaseNanos.entrySet()) {
+			breakdown.append(breakdown.length() == 0 ? "" : ", ");
+			breakdown.append(entry.getKey()).append(" ").append(entry.getValue() / 1000000).append("ms");
+		}
+		log.info("Startup complete in " + (System.nanoTime() - startNanos) / 1000000 + "ms (" + breakdown + ")");
+	}
+}
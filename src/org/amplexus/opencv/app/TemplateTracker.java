@@ -0,0 +1,110 @@
+package org.amplexus.opencv.app;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Follows a face from frame to frame by template matching, which is a lot cheaper than running the
+ * cascade classifier again.
+ * 
+ * When the cascade finds a face, start() takes a copy of the face patch. Each following frame,
+ * update() slides that patch over a small window around the face's last position (normalised cross
+ * correlation) and moves to the best match. The match score doubles as a confidence: once it drops
+ * the face has turned, been occluded or changed too much, and the caller should run the cascade again.
+ * 
+ * The template, result and window Mats are reused. Not thread safe.
+ */
+public class TemplateTracker {
+
+	public static final double DEFAULT_MIN_CONFIDENCE = 0.6;
+	static final double SEARCH_MARGIN = 0.5;		// How far around the last position to search, as a fraction of the face size
+
+	private final Mat template = new Mat();
+	private final Mat result = new Mat();
+	private final Rect position = new Rect();
+	private final Rect searchWindow = new Rect();
+	private boolean tracking = false;
+	private double confidence = 0;
+
+	/**
+	 * Starts tracking the given face, which must be in image's coordinates.
+	 */
+	public void start(Mat image, Rect face) {
+		int left = Math.max(0, face.x);
+		int top = Math.max(0, face.y);
+		int right = Math.min(image.cols(), face.x + face.width);
+		int bottom = Math.min(image.rows(), face.y + face.height);
+		if(right - left < 2 || bottom - top < 2) {
+			tracking = false;
+			return;
+		}
+		position.x = left;
+		position.y = top;
+		position.width = right - left;
+		position.height = bottom - top;
+		Mat patch = image.submat(position);
+		patch.copyTo(template);
+		patch.release();
+		confidence = 1.0;
+		tracking = true;
+	}
+
+	/**
+	 * Finds the face in a new frame.
+	 * 
+	 * @return the match confidence from -1 to 1, or 0 if we aren't tracking anything
+	 */
+	public double update(Mat image) {
+		if(!tracking)
+			return 0;
+		int marginX = (int) (position.width * SEARCH_MARGIN);
+		int marginY = (int) (position.height * SEARCH_MARGIN);
+		int left = Math.max(0, position.x - marginX);
+		int top = Math.max(0, position.y - marginY);
+		int right = Math.min(image.cols(), position.x + position.width + marginX);
+		int bottom = Math.min(image.rows(), position.y + position.height + marginY);
+		if(right - left < template.cols() || bottom - top < template.rows()) {
+			stop(); // Pushed off the edge of the frame
+			return 0;
+		}
+		searchWindow.x = left;
+		searchWindow.y = top;
+		searchWindow.width = right - left;
+		searchWindow.height = bottom - top;
+		Mat window = image.submat(searchWindow);
+		Imgproc.matchTemplate(window, template, result, Imgproc.TM_CCOEFF_NORMED);
+		window.release();
+		Core.MinMaxLocResult best = Core.minMaxLoc(result);
+		position.x = searchWindow.x + (int) best.maxLoc.x;
+		position.y = searchWindow.y + (int) best.maxLoc.y;
+		confidence = best.maxVal;
+		return confidence;
+	}
+
+	public void stop() {
+		tracking = false;
+		confidence = 0;
+	}
+
+	public boolean isTracking() {
+		return tracking;
+	}
+
+	/**
+	 * @return where the face is now, in image coordinates. Reused by the next update.
+	 */
+	public Rect getPosition() {
+		return position;
+	}
+
+	public double getConfidence() {
+		return confidence;
+	}
+
+	public void release() {
+		template.release();
+		result.release();
+	}
+}
@@ -0,0 +1,128 @@
+package org.amplexus.opencv.app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.objdetect.CascadeClassifier;
+
+/**
+ * Spreads each detection across cores by cutting the image into overlapping tiles and running the
+ * cascade over each tile in parallel.
+ * 
+ * The tiles overlap by a fixed margin, and only look for faces up to that size, so any face small
+ * enough lies wholly inside at least one tile. Faces bigger than the margin would be cut in two by
+ * the tile borders, so they are looked for by one more task over the whole image - which is cheap,
+ * because the cascade only has to try a few coarse scales.
+ */
+public class TiledDetectionEngine extends ParallelDetectionEngine {
+
+	public static final int DEFAULT_TILE_ROWS = 2;
+	public static final int DEFAULT_TILE_COLUMNS = 2;
+	public static final double DEFAULT_OVERLAP_RATIO = 0.25;	// Overlap as a fraction of the image's shorter side
+
+	private final int tileRows;
+	private final int tileColumns;
+	private final double overlapRatio;
+
+	/**
+	 * One worker per core, 2x2 tiles.
+	 */
+	public TiledDetectionEngine(String cascadeResource) {
+		this(cascadeResource, Runtime.getRuntime().availableProcessors(), DEFAULT_TILE_ROWS, DEFAULT_TILE_COLUMNS, DEFAULT_OVERLAP_RATIO);
+	}
+
+	/**
+	 * @param cascadeResource the cascade on the classpath, e.g. FaceDetector.LBP_CASCADE
+	 * @param threads how many detection workers to run
+	 * @param overlapRatio how far tiles overlap, as a fraction of the image's shorter side - also the biggest face the tiles look for
+	 */
+	public TiledDetectionEngine(String cascadeResource, int threads, int tileRows, int tileColumns, double overlapRatio) {
+		super(cascadeResource, threads);
+		this.tileRows = Math.max(1, tileRows);
+		this.tileColumns = Math.max(1, tileColumns);
+		this.overlapRatio = overlapRatio;
+	}
+
+	@Override
+	public void detectMultiScale(Mat image, MatOfRect objects, double scaleFactor, int minNeighbors, int flags, Size minSize, Size maxSize) {
+		int width = image.cols();
+		int height = image.rows();
+		int overlap = (int) (Math.min(width, height) * overlapRatio);
+		boolean unbounded = isUnbounded(maxSize);
+		List<TileDetection> tasks = new ArrayList<TileDetection>(tileRows * tileColumns + 1);
+
+		// Small faces - searched for tile by tile
+		if(overlap > 0 && minSize.width <= overlap && minSize.height <= overlap) {
+			Size tileMaxSize = new Size(unbounded ? overlap : Math.min(overlap, maxSize.width), unbounded ? overlap : Math.min(overlap, maxSize.height));
+			int cellWidth = (width + tileColumns - 1) / tileColumns;
+			int cellHeight = (height + tileRows - 1) / tileRows;
+			for(int row = 0; row < tileRows; row++) {
+				for(int column = 0; column < tileColumns; column++) {
+					int left = column * cellWidth;
+					int top = row * cellHeight;
+					if(left >= width || top >= height)
+						continue;
+					Rect tile = new Rect(left, top, Math.min(width, left + cellWidth + overlap) - left, Math.min(height, top + cellHeight + overlap) - top);
+					tasks.add(new TileDetection(image, tile, scaleFactor, minNeighbors, flags, minSize, tileMaxSize));
+				}
+			}
+		}
+
+		// Big faces - could straddle a tile border, so searched for over the whole image
+		if(unbounded || maxSize.width > overlap || maxSize.height > overlap) {
+			Size bigMinSize = new Size(Math.max(minSize.width, overlap), Math.max(minSize.height, overlap));
+			tasks.add(new TileDetection(image, new Rect(0, 0, width, height), scaleFactor, minNeighbors, flags, bigMinSize, maxSize));
+		}
+
+		runAndMerge(tasks, objects);
+	}
+
+	/**
+	 * Runs the cascade over one tile.
+	 */
+	private class TileDetection extends DetectionTask {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Mat image;
+		private final Rect tile;
+		private final double scaleFactor;
+		private final int minNeighbors;
+		private final int flags;
+		private final Size minSize;
+		private final Size maxSize;
+
+		TileDetection(Mat image, Rect tile, double scaleFactor, int minNeighbors, int flags, Size minSize, Size maxSize) {
+			this.image = image;
+			this.tile = tile;
+			this.scaleFactor = scaleFactor;
+			this.minNeighbors = minNeighbors;
+			this.flags = flags;
+			this.minSize = minSize;
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected List<Rect> detect(CascadeClassifier classifier) {
+			Mat tileImage = image.submat(tile);
+			MatOfRect tileFaces = new MatOfRect();
+			try {
+				classifier.detectMultiScale(tileImage, tileFaces, scaleFactor, minNeighbors, flags, minSize, maxSize);
+				Rect[] faces = tileFaces.toArray();
+				for(Rect face : faces) {
+					face.x += tile.x;
+					face.y += tile.y;
+				}
+				return Arrays.asList(faces);
+			} finally {
+				tileFaces.release();
+				tileImage.release();
+			}
+		}
+	}
+}
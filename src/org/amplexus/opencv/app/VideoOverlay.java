@@ -0,0 +1,113 @@
+package org.amplexus.opencv.app;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Stroke;
+
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+
+/**
+ * Draws a frame's detections over it on screen - face boxes, track IDs, a crosshair on the target and
+ * the frame rate - so the frame's pixels are never touched and the same frame can go on to be
+ * recorded, snapshotted or processed as captured.
+ * 
+ * Each layer can be switched on and off from any thread while the video is running.
+ */
+public class VideoOverlay {
+
+	static final Color FACE_COLOUR = toColor(FaceDetector.FACE_COLOUR);
+	static final Color TRACKED_FACE_COLOUR = toColor(FaceDetector.TRACKED_FACE_COLOUR);
+	static final Color TRACK_COLOUR = toColor(MultiFaceTracker.TRACK_COLOUR);
+	static final Color TARGET_COLOUR = toColor(MultiFaceTracker.TARGET_COLOUR);
+	static final Color TEXT_COLOUR = Color.WHITE;
+	static final Stroke TARGET_STROKE = new BasicStroke(2);
+	static final Font LABEL_FONT = new Font(Font.SANS_SERIF, Font.BOLD, 12);
+
+	private volatile boolean enabled = true;
+	private volatile boolean showFaces = true;
+	private volatile boolean showTracks = true;
+	private volatile boolean showTarget = true;
+	private volatile boolean showFps = true;
+
+	/**
+	 * @param fps the frame rate to show, or 0 if it isn't known yet
+	 */
+	void draw(Graphics2D g, FrameDetections detections, double fps) {
+		if(!enabled)
+			return;
+		g.setFont(LABEL_FONT);
+		if(showFaces) {
+			g.setColor(detections.isTracked() ? TRACKED_FACE_COLOUR : FACE_COLOUR);
+			for(int i = 0; i < detections.getFaceCount(); i++) {
+				Rect face = detections.getFace(i);
+				g.drawRect(face.x, face.y, face.width, face.height);
+			}
+		}
+		for(int i = 0; i < detections.getTrackCount(); i++) {
+			Rect box = detections.getTrackBox(i);
+			boolean target = detections.getTrackId(i) == detections.getTargetId();
+			if(target && showTarget)
+				drawCrosshair(g, box);
+			if(showTracks) {
+				g.setColor(target ? TARGET_COLOUR : TRACK_COLOUR);
+				g.drawString(detections.getTrackLabel(i), box.x, Math.max(12, box.y - 4));
+			}
+		}
+		if(showFps && fps > 0) {
+			g.setColor(TEXT_COLOUR);
+			g.drawString(String.format("%.1f fps", fps), 4, 14);
+		}
+	}
+
+	private void drawCrosshair(Graphics2D g, Rect box) {
+		int centreX = box.x + box.width / 2;
+		int centreY = box.y + box.height / 2;
+		Stroke stroke = g.getStroke();
+		g.setColor(TARGET_COLOUR);
+		g.setStroke(TARGET_STROKE);
+		g.drawRect(box.x, box.y, box.width, box.height);
+		g.drawLine(centreX - box.width / 4, centreY, centreX + box.width / 4, centreY);
+		g.drawLine(centreX, centreY - box.height / 4, centreX, centreY + box.height / 4);
+		g.setStroke(stroke);
+	}
+
+	/**
+	 * @param colour a BGR colour, as OpenCV drawing uses
+	 */
+	static Color toColor(Scalar colour) {
+		return new Color((int) colour.val[2], (int) colour.val[1], (int) colour.val[0]);
+	}
+
+	/**
+	 * Switches the whole overlay on or off, leaving the individual layers as they are.
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setShowFaces(boolean showFaces) {
+		this.showFaces = showFaces;
+	}
+
+	public void setShowTracks(boolean showTracks) {
+		this.showTracks = showTracks;
+	}
+
+	/**
+	 * @param showTarget whether to box the face the camera is following and put a crosshair on it
+	 */
+	public void setShowTarget(boolean showTarget) {
+		this.showTarget = showTarget;
+	}
+
+	public void setShowFps(boolean showFps) {
+		this.showFps = showFps;
+	}
+}
@@ -0,0 +1,263 @@
+package org.amplexus.opencv.app;
+
+import java.awt.Dimension;
+import java.awt.DisplayMode;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.HeadlessException;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.swing.JPanel;
+import javax.swing.Timer;
+
+import org.opencv.core.Mat;
+
+/**
+ * Shows video frames handed over from a processing thread, always the newest one, at no more than
+ * the display's refresh rate.
+ * 
+ * The processing thread converts each frame into a picture of its own and drops it into a single
+ * slot, overwriting (and counting as dropped) any picture the GUI hasn't got round to. It never
+ * waits for the GUI. A Swing timer running at the paint rate takes whatever is in the slot and
+ * repaints, so however fast or bursty the frames come the event dispatch thread does one cheap
+ * repaint per tick, of the latest frame, and Swing's double buffering keeps it from flickering.
+ * 
+ * Each frame can bring its FrameDetections, which a VideoOverlay draws over the picture; the
+ * frame's own pixels are never drawn on.
+ * 
+ * Three pictures circulate - one being converted, one waiting in the slot, one on screen - so
+ * nothing is allocated once it's running. Capture to paint latency is measured for every frame
+ * painted.
+ */
+public class VideoPanel extends JPanel {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int DEFAULT_REFRESH_RATE = 60;		// When the display won't say
+	static final double FPS_SMOOTHING = 0.1;		// Weight of the newest frame interval in the frame rate shown
+
+	/**
+	 * A converted frame.
+	 */
+	private static class Picture {
+		final MatImageConverter converter = new MatImageConverter();
+		final FrameDetections detections = new FrameDetections();
+		BufferedImage image;
+		long captureNanos;
+		double fps;
+
+		void release() {
+			converter.release();
+		}
+	}
+
+	private final AtomicReference<Picture> latest = new AtomicReference<Picture>();	// Waiting to be painted
+	private final AtomicReference<Picture> spare = new AtomicReference<Picture>();	// Free for the processing thread
+	private final Timer paintTimer;
+	private final VideoOverlay overlay = new VideoOverlay();
+	private final AtomicLong shownCount = new AtomicLong();
+	private final AtomicLong paintedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong windowPaints = new AtomicLong();
+	private final AtomicLong windowLatencyNanos = new AtomicLong();
+	private final AtomicLong windowMaxLatencyNanos = new AtomicLong();
+	private Picture converting = null;		// Only touched by the processing thread
+	private long lastShownNanos = 0;		// Likewise
+	private double averageIntervalNanos = 0;	// Likewise
+	private Picture onScreen = null;		// Only touched by the event dispatch thread
+	private boolean painted = true;			// Whether onScreen has been painted yet
+
+	/**
+	 * Paints at the display's refresh rate.
+	 */
+	public VideoPanel(int width, int height) {
+		this(width, height, getRefreshRate());
+	}
+
+	/**
+	 * @param maxFps the most times a second to repaint, e.g. to leave the CPU for detection
+	 */
+	public VideoPanel(int width, int height, double maxFps) {
+		setPreferredSize(new Dimension(width, height));
+		setDoubleBuffered(true);
+		paintTimer = new Timer((int) Math.max(1, Math.round(1000 / maxFps)), new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				showLatest();
+			}
+		});
+		paintTimer.setCoalesce(true);
+	}
+
+	/**
+	 * @return the default screen's refresh rate, or DEFAULT_REFRESH_RATE if it's unknown or there is no screen
+	 */
+	static int getRefreshRate() {
+		try {
+			DisplayMode mode = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode();
+			if(mode.getRefreshRate() != DisplayMode.REFRESH_RATE_UNKNOWN)
+				return mode.getRefreshRate();
+		} catch (HeadlessException e) {
+		}
+		return DEFAULT_REFRESH_RATE;
+	}
+
+	/**
+	 * Shows a frame with nothing drawn over it.
+	 */
+	public void show(Mat image, long captureNanos) {
+		show(image, captureNanos, null);
+	}
+
+	/**
+	 * Called by the processing thread with each finished frame. Copies the image and detections, so
+	 * the caller can reuse them as soon as this returns.
+	 * 
+	 * @param image an 8 bit, 1 or 3 channel image, which is only read
+	 * @param captureNanos when the frame was captured, from System.nanoTime()
+	 * @param detections what to draw over the frame, or null
+	 */
+	public void show(Mat image, long captureNanos, FrameDetections detections) {
+		Picture picture = converting;
+		if(picture == null)
+			picture = new Picture();
+		picture.image = picture.converter.convert(image);
+		picture.captureNanos = captureNanos;
+		if(detections == null)
+			picture.detections.clear();
+		else
+			picture.detections.copyFrom(detections);
+		long now = System.nanoTime();
+		if(lastShownNanos != 0)
+			averageIntervalNanos = averageIntervalNanos == 0 ? now - lastShownNanos : averageIntervalNanos + FPS_SMOOTHING * (now - lastShownNanos - averageIntervalNanos);
+		lastShownNanos = now;
+		picture.fps = averageIntervalNanos == 0 ? 0 : 1e9 / averageIntervalNanos;
+		shownCount.incrementAndGet();
+		Picture stale = latest.getAndSet(picture);
+		if(stale != null) {
+			droppedCount.incrementAndGet();
+			converting = stale;
+		} else {
+			converting = spare.getAndSet(null); // Only null if the GUI is halfway through swapping - we'll make another
+		}
+	}
+
+	/**
+	 * Runs on the event dispatch thread at the paint rate.
+	 */
+	private void showLatest() {
+		Picture picture = latest.getAndSet(null);
+		if(picture == null)
+			return;
+		if(onScreen != null) {
+			Picture displaced = spare.getAndSet(onScreen);
+			if(displaced != null)
+				displaced.release(); // One too many got made while we were swapping
+		}
+		onScreen = picture;
+		painted = false;
+		if(getPreferredSize().width != picture.image.getWidth() || getPreferredSize().height != picture.image.getHeight()) {
+			setPreferredSize(new Dimension(picture.image.getWidth(), picture.image.getHeight()));
+			revalidate();
+		}
+		repaint();
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		super.paintComponent(g);
+		if(onScreen == null)
+			return;
+		g.drawImage(onScreen.image, 0, 0, null);
+		overlay.draw((Graphics2D) g, onScreen.detections, onScreen.fps);
+		if(!painted) {
+			painted = true;
+			long latencyNanos = System.nanoTime() - onScreen.captureNanos;
+			paintedCount.incrementAndGet();
+			windowPaints.incrementAndGet();
+			windowLatencyNanos.addAndGet(latencyNanos);
+			long max = windowMaxLatencyNanos.get();
+			while(latencyNanos > max && !windowMaxLatencyNanos.compareAndSet(max, latencyNanos))
+				max = windowMaxLatencyNanos.get();
+		}
+	}
+
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		paintTimer.start();
+	}
+
+	@Override
+	public void removeNotify() {
+		paintTimer.stop();
+		super.removeNotify();
+	}
+
+	/**
+	 * @return the layers drawn over the video, which can be switched on and off while it runs
+	 */
+	public VideoOverlay getOverlay() {
+		return overlay;
+	}
+
+	/**
+	 * Switches the overlay on or off and repaints straight away, rather than waiting for the next frame.
+	 * Call on the event dispatch thread.
+	 */
+	public void setOverlayEnabled(boolean enabled) {
+		overlay.setEnabled(enabled);
+		repaint();
+	}
+
+	/**
+	 * @return the number of frames handed to show()
+	 */
+	public long getShownCount() {
+		return shownCount.get();
+	}
+
+	/**
+	 * @return the number of frames that made it to the screen
+	 */
+	public long getPaintedCount() {
+		return paintedCount.get();
+	}
+
+	/**
+	 * @return the number of frames overwritten by a newer one before they could be painted
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Summarises the frames painted since the last call and starts a new reporting window.
+	 */
+	public synchronized String report() {
+		long paints = windowPaints.getAndSet(0);
+		long latencyNanos = windowLatencyNanos.getAndSet(0);
+		long maxLatencyNanos = windowMaxLatencyNanos.getAndSet(0);
+		if(paints == 0)
+			return String.format("painted %d, dropped %d", paintedCount.get(), droppedCount.get());
+		return String.format("painted %d, dropped %d, paint latency %.1f ms avg / %.1f ms max",
+				paintedCount.get(), droppedCount.get(), latencyNanos / 1e6 / paints, maxLatencyNanos / 1e6);
+	}
+
+	/**
+	 * Frees the native buffers of the pictures not waiting for or on the screen. Call once the
+	 * processing thread has stopped calling show(); the last frame stays up.
+	 */
+	public void release() {
+		Picture[] pictures = { converting, spare.getAndSet(null) };
+		converting = null;
+		for(Picture picture : pictures) {
+			if(picture != null)
+				picture.release();
+		}
+	}
+}
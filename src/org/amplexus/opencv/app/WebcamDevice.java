@@ -0,0 +1,29 @@
+package org.amplexus.opencv.app;
+
+/**
+ * A webcam that was found by the WebcamProber.
+ */
+public class WebcamDevice {
+
+	final int index;							// The VideoCapture device index
+	final int width;
+	final int height;
+
+	public WebcamDevice(int index, int width, int height) {
+		this.index = index;
+		this.width = width;
+		this.height = height;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Shown in the webcam combo box.
+	 */
+	@Override
+	public String toString() {
+		return "Webcam #" + index + " (" + width + "x" + height + ")";
+	}
+}
@@ -0,0 +1,58 @@
+package org.amplexus.opencv.app;
+
+import org.opencv.core.Mat;
+import org.opencv.highgui.VideoCapture;
+
+/**
+ * Live frames from a webcam via OpenCV's VideoCapture.
+ * 
+ * No pacing is done here - the camera delivers frames at its own rate.
+ */
+public class WebcamFrameSource implements FrameSource {
+
+	private VideoCapture capture;
+	private int deviceIndex;
+
+	/**
+	 * @param deviceIndex the V4L device to open, or -1 for whatever OpenCV picks first
+	 */
+	public WebcamFrameSource(int deviceIndex) {
+		this.capture = new VideoCapture();
+		this.deviceIndex = deviceIndex;
+	}
+
+	/**
+	 * Wraps a VideoCapture that the caller has already opened (or will open) and owns.
+	 */
+	public WebcamFrameSource(VideoCapture capture, int deviceIndex) {
+		this.capture = capture;
+		this.deviceIndex = deviceIndex;
+	}
+
+	@Override
+	public boolean open() {
+		if(!capture.isOpened())
+			capture.open(deviceIndex);
+		return capture.isOpened();
+	}
+
+	@Override
+	public boolean isOpened() {
+		return capture.isOpened();
+	}
+
+	@Override
+	public boolean read(Mat frame) {
+		return capture.read(frame) && !frame.empty();
+	}
+
+	@Override
+	public void release() {
+		capture.release();
+	}
+
+	@Override
+	public String getName() {
+		return "Webcam #" + deviceIndex;
+	}
+}
@@ -0,0 +1,111 @@
+package org.amplexus.opencv.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+import org.opencv.highgui.VideoCapture;
+
+/**
+ * Discovers which webcams are attached by opening each device index and reading a frame from it.
+ * 
+ * Opening a V4L device and waiting for its first frame can take the best part of a second, so all
+ * indexes are probed concurrently and reported to the listener as soon as each one answers. A device
+ * that hasn't answered by the timeout is reported as missing - its probe thread is a daemon and is
+ * simply abandoned.
+ */
+public class WebcamProber {
+
+	/**
+	 * Receives probe results. Called on the probe threads, not the event dispatch thread.
+	 */
+	public interface Listener {
+		void webcamDiscovered(WebcamDevice device);
+		void probingFinished(List<WebcamDevice> devices);
+	}
+
+	private static final Logger log = Logger.getLogger(WebcamProber.class);
+
+	private int deviceCount;
+	private long timeoutMillis;
+
+	/**
+	 * @param deviceCount the number of device indexes to try, starting at 0
+	 * @param timeoutMillis how long to wait for all of them to answer
+	 */
+	public WebcamProber(int deviceCount, long timeoutMillis) {
+		this.deviceCount = deviceCount;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Starts probing in the background and returns immediately. The native library must already be loaded.
+	 */
+	public void probe(final Listener listener) {
+		final ExecutorService executor = Executors.newFixedThreadPool(deviceCount, new DaemonThreadFactory("WebcamProber"));
+		final CompletionService<WebcamDevice> completionService = new ExecutorCompletionService<WebcamDevice>(executor);
+		for(int i = 0; i < deviceCount; i++) {
+			final int index = i;
+			completionService.submit(new Callable<WebcamDevice>() {
+				public WebcamDevice call() {
+					return probeDevice(index);
+				}
+			});
+		}
+		Thread collector = new Thread(new Runnable() {
+			public void run() {
+				List<WebcamDevice> devices = new ArrayList<WebcamDevice>();
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+				try {
+					for(int answered = 0; answered < deviceCount; answered++) {
+						Future<WebcamDevice> result = completionService.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+						if(result == null) {
+							log.warn((deviceCount - answered) + " webcam(s) didn't answer within " + timeoutMillis + "ms - ignoring them");
+							break;
+						}
+						WebcamDevice device = result.get();
+						if(device != null) {
+							devices.add(device);
+							listener.webcamDiscovered(device);
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					log.error("Webcam probe failed", e.getCause());
+				} finally {
+					executor.shutdownNow();
+					listener.probingFinished(devices);
+				}
+			}
+		}, "WebcamProber-collector");
+		collector.setDaemon(true);
+		collector.start();
+	}
+
+	private WebcamDevice probeDevice(int index) {
+		VideoCapture videoCapture = new VideoCapture();
+		Mat image = new Mat();
+		try {
+			if(!videoCapture.open(index) || !videoCapture.read(image) || image.empty())
+				return null;
+			int width = (int) videoCapture.get(Highgui.CV_CAP_PROP_FRAME_WIDTH);
+			int height = (int) videoCapture.get(Highgui.CV_CAP_PROP_FRAME_HEIGHT);
+			log.info("Discovered device #" + index + " with dims " + width + "x" + height);
+			return new WebcamDevice(index, width, height);
+		} finally {
+			image.release();
+			videoCapture.release();
+		}
+	}
+}
@@ -1,95 +1,118 @@
 package org.amplexus.opencv.app;
 
-import java.awt.Dimension;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.Iterator;
-import java.util.List;
-
-import javax.imageio.ImageIO;
-import javax.swing.Icon;
-import javax.swing.ImageIcon;
-import javax.swing.JLabel;
+import java.util.concurrent.TimeUnit;
+
 import javax.swing.SwingWorker;
 
-import org.opencv.core.Core;
-import org.opencv.core.Mat;
-import org.opencv.core.MatOfByte;
-import org.opencv.core.MatOfRect;
-import org.opencv.core.Point;
-import org.opencv.core.Rect;
-import org.opencv.core.Scalar;
-import org.opencv.highgui.Highgui;
-import org.opencv.highgui.VideoCapture;
+import org.apache.log4j.Logger;
 import org.opencv.objdetect.CascadeClassifier;
 
-public class WebcamTask extends SwingWorker<Void, Mat> {
+public class WebcamTask extends SwingWorker<Void, Void> {
 
+	static final long FRAME_TIMEOUT_MILLIS = 500;
+	static final int DETECTION_INTERVAL = 3;	// Run the cascade every third frame and follow the face with template matching in between
+	static final int FRAME_POOL_SIZE = 3;		// Capturing, waiting, detecting - the VideoPanel keeps its own copy
 	static final String CASCADE_CLASSIFIER_FILENAME = "/lbpcascade_frontalface.xml"; // Least expensive / least accurate
 	// static final String CASCADE_CLASSIFIER_FILENAME = "/haarcascade_frontalface_alt.xml"; // More expensive / more accurate
 	// static final String CASCADE_CLASSIFIER_FILENAME = "/haarcascade_frontalface_default.xml";  // Most expensive / most accurate
 
-	CascadeClassifier faceDetector = null;
-	VideoCapture capture = null;
-	JLabel webcamImageLabel = null;
+	private static final Logger log = Logger.getLogger(WebcamTask.class);
+
+	FaceDetector faceDetector = null;
+	FaceDetectionProcessor detection = null;	// The same detection stage as a FramePipeline, run on this task's thread
+	String pooledCascade = null;			// Set if our classifier was borrowed from the CascadeClassifierPool and must go back
+	CascadeClassifier pooledClassifier = null;
+	FrameSource source = null;
+	FramePool framePool = new FramePool(FRAME_POOL_SIZE);
+	LatestFrameExchange exchange = new LatestFrameExchange(framePool);
+	PipelineStats stats = null;
+	FrameGrabber grabber = null;
+	VideoPanel videoPanel = null;
 	long pauseMillis = 0;
 	
-	public WebcamTask(VideoCapture vc, long pauseMillis, JLabel webcamImageLabel) {
-		this.capture = vc;
-//		this.capture = new VideoCapture(-1);
+	public WebcamTask(FrameSource source, long pauseMillis, VideoPanel videoPanel) {
+		this(source, CASCADE_CLASSIFIER_FILENAME, pauseMillis, videoPanel);
+	}
+
+	/**
+	 * Borrows the cascade from the CascadeClassifierPool for as long as the task runs. If the pool has one
+	 * preloaded the task starts detecting straight away.
+	 */
+	public WebcamTask(FrameSource source, String cascadeResource, long pauseMillis, VideoPanel videoPanel) {
+		this(source, CascadeClassifierPool.getShared().acquire(cascadeResource), pauseMillis, videoPanel);
+		this.pooledCascade = cascadeResource;
+		this.pooledClassifier = ((CascadeDetectionEngine) faceDetector.getEngine()).getClassifier();
+	}
+
+	/**
+	 * @param classifier an already loaded (and preferably warmed up) cascade, so the task can start detecting straight away
+	 */
+	public WebcamTask(FrameSource source, CascadeClassifier classifier, long pauseMillis, VideoPanel videoPanel) {
+		this(source, new CascadeDetectionEngine(classifier), pauseMillis, videoPanel);
+	}
+
+	/**
+	 * @param engine runs the cascade for this task, e.g. a TiledDetectionEngine to use several cores per frame. Released when the task finishes.
+	 */
+	public WebcamTask(FrameSource source, DetectionEngine engine, long pauseMillis, VideoPanel videoPanel) {
+		this.source = source;
 		this.pauseMillis = pauseMillis;
-		this.webcamImageLabel = webcamImageLabel;
-		this.faceDetector = new CascadeClassifier(FaceTracker.class.getResource(CASCADE_CLASSIFIER_FILENAME).getPath());
+		this.videoPanel = videoPanel;
+		this.faceDetector = new FaceDetector(engine, new DetectionPreprocessor());
+		this.faceDetector.setRegionOfInterestTracking(true); // Only search around the face we're following
+		this.faceDetector.setDetectionInterval(DETECTION_INTERVAL);
+		this.faceDetector.setMotionGate(new MotionGate()); // The cameras mostly look at empty rooms - don't search them over and over
+		this.stats = new PipelineStats(source.getName());
+		this.detection = new FaceDetectionProcessor(faceDetector, stats);
+	}
+
+	/**
+	 * @return the detection preprocessing settings, which can be changed while the task is running
+	 */
+	public DetectionPreprocessor getPreprocessor() {
+		return faceDetector.getPreprocessor();
+	}
+
+	/**
+	 * Lets the governor pick the cascade, detection scale and frame skipping to hold its processing budget.
+	 * Must be set before the task is executed.
+	 */
+	public void setQualityGovernor(QualityGovernor governor) {
+		detection.setQualityGovernor(governor);
+		if(pooledCascade != null)
+			governor.addClassifier(pooledCascade, pooledClassifier); // Already have this one - don't borrow another
+	}
+
+	/**
+	 * @param listener called with each processed frame's face, e.g. to steer the pan/tilt head
+	 */
+	public void setListener(FaceDetectionProcessor.Listener listener) {
+		detection.setListener(listener);
+	}
+
+	public QualityGovernor getQualityGovernor() {
+		return detection.getQualityGovernor();
+	}
+
+	/**
+	 * @return frame rate and detection latency figures, updated as frames are processed
+	 */
+	public PipelineStats getStats() {
+		return stats;
 	}
 
 	@Override
 	protected Void doInBackground() throws Exception {
-		if (capture.isOpened()) {
-			while(!isCancelled()) {
-				Mat webcamImage = new Mat();
-				capture.read(webcamImage);
-				if(!webcamImage.empty()) {
-		        	int webcamWidth = webcamImage.cols();
-		    		int webcamHeight = webcamImage.rows();
-		    		MatOfRect detectedFaces = new MatOfRect();
-		    		// The following line causes crash on exit for some reason
-		    		faceDetector.detectMultiScale(webcamImage, detectedFaces); // As per http://en.wikipedia.org/wiki/Viola-Jones_object_detection_framework
-		    		double biggestRect = 0;
-		    		Rect biggestFaceRect = null;
-		    		Rect[] detectedFacesRectArray = detectedFaces.toArray();
-		    		for (Rect faceRect : detectedFacesRectArray) {
-		    			// determine biggest face - that will be the one we centre the camera on using the pan/tilt servos
-		    			if(faceRect.area() > biggestRect) {
-		    				biggestRect = faceRect.area();
-		    				biggestFaceRect = faceRect;
-		    			}
-		    			Core.rectangle(webcamImage, new Point(faceRect.x, faceRect.y), new Point(faceRect.x + faceRect.width, faceRect.y + faceRect.height), new Scalar(0, 255, 0));
-		    		}
-		    		if(biggestFaceRect != null) {
-		    			System.out.println("Detected face at: " + biggestFaceRect.x + "x" + biggestFaceRect.y + "y" + biggestFaceRect.width + "w" + biggestFaceRect.height + "h");
-		    			Point centreOfFaceOnWebcam = new Point(biggestFaceRect.x + biggestFaceRect.width / 2, biggestFaceRect.y + biggestFaceRect.height / 2);
-//		    			panTiltTowards(webcamWidth, webcamHeight, centreOfFaceOnWebcam);
-		    		}
-		
-//		        	MatOfByte matOfByte = new MatOfByte();
-//		    		System.out.println("imencoding...");
-//		    		Highgui.imencode(".jpg", webcamImage, matOfByte); // Mapping #1
-//		    		byte[] byteArray = matOfByte.toArray(); // Mapping #2
-//		    		System.out.println("converted to array...");
-//		    		BufferedImage bufImage = null;
-//		    		InputStream in = new ByteArrayInputStream(byteArray);
-//		    		try {
-//		    			bufImage = ImageIO.read(in); // Mapping #3
-//		    			publish(bufImage);
-//		    		} catch(IOException e) {
-//		    			e.printStackTrace();		    			
-//		    		}
-		    		
-	    			System.out.println("Publishing image...");
-	            	publish(webcamImage);
-				}
+		grabber = new FrameGrabber(source, exchange);
+		grabber.start();
+		try {
+			while(!isCancelled() && !exchange.isFinished()) {
+				Frame frame = exchange.take(FRAME_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS); // Always the freshest frame - stale ones are dropped
+				if(frame == null)
+					continue;
+				detection.process(frame);
+				videoPanel.show(frame.image, frame.captureNanos, frame.detections); // Copied for painting whenever the GUI gets to it, with the faces drawn over it
+				exchange.recycle(frame);
 				if(pauseMillis > 0) {
 					try {
 						Thread.sleep(pauseMillis);
@@ -97,46 +120,23 @@ public class WebcamTask extends SwingWorker<Void, Mat> {
 					}
 				}
 			}
+		} finally {
+			grabber.stop();
+			exchange.clear();
+			detection.close(); // Releases the detector and the governor's cascades
+			videoPanel.release();
+			if(pooledCascade != null)
+				CascadeClassifierPool.getShared().release(pooledCascade, pooledClassifier);
 		}
 		return null;
 	}
 	
-	/**
-	 * Invoked on the event dispatcher thread	
-	 */
-    @Override
-    protected void process(List<Mat> chunks) {
-    	Iterator<Mat> i = chunks.iterator();
-//    	while(i.hasNext()) {
-    	if(i.hasNext()) { // don't want to fall behind, so just process the first one!
-        	Mat webcamImage = i.next();
-        	renderImage(webcamImage);
-        	System.out.println("Published image: " + webcamImage.toString());
-
-    	}
-    }
-    
-	private void renderImage(Mat webcamImage) {
-    	MatOfByte matOfByte = new MatOfByte();
-		Highgui.imencode(".jpg", webcamImage, matOfByte); // Mapping #1
-		System.out.println("imencoded...");
-		byte[] byteArray = matOfByte.toArray(); // Mapping #2
-		System.out.println("converted to array...");
-		BufferedImage bufImage = null;
-		InputStream in = new ByteArrayInputStream(byteArray);
-		try {
-			bufImage = ImageIO.read(in); // Mapping #3
-			ImageIcon icon = (ImageIcon) webcamImageLabel.getIcon();
-			icon.setImage(bufImage);
-			webcamImageLabel.repaint();
-			System.out.println("Repainted...");
-		} catch (IOException e) {
-			e.printStackTrace();
-		}    		
-	}
-
 	@Override
 	protected void done() {
-		System.out.println("done");
+		System.out.println("done: captured " + exchange.getPublishedCount() + " frames, detected on " + exchange.getTakenCount() + ", dropped " + exchange.getDroppedCount() + " stale frames, allocated " + framePool.getAllocatedCount() + " frame buffers");
+		System.out.println("done: " + faceDetector.getMotionSkipCount() + " frames without motion skipped, " + faceDetector.getMotionRegionScanCount() + " searched only where they moved");
+		System.out.println("done: target face changed " + detection.getFaceTracker().getTargetSwitchCount() + " times");
+		System.out.println("done: display " + videoPanel.report());
+		framePool.close();
 	}
 }
@@ -18,13 +18,17 @@ import com.rapplogic.xbee.api.wpan.TxStatusResponse;
 /**
 *   ATSL to get the low bits.
  *   
- * PROTOCOL DATA PC TO XBEE: 2 x bytes where first byte is a command and the second byte is data
+ * PROTOCOL DATA PC TO XBEE: the first byte is a command and the rest is its data - 2 x bytes for the
+ * single commands, 3 for CMD_PAN_TILT_TO and 4 for CMD_PAN_TILT_STEP
  * - motor stop:			byte 1 = 00, byte 2 = N/A
  * - pan-tilt left:			byte 1 = 05, byte 2 = N/A																					# NOT YET SUPPORTED 
  * - pan-tilt right:		byte 1 = 06, byte 2 = N/A																					# NOT YET SUPPORTED
  * - pan-tilt up:			byte 1 = 07, byte 2 = N/A																					# NOT YET SUPPORTED
  * - pan-tilt down:			byte 1 = 08, byte 2 = N/A																					# NOT YET SUPPORTED
  *																			# NOT YET SUPPORTED
+ * - pan-tilt to both:		byte 1 = 09, byte 2 = pan angle, byte 3 = tilt angle
+ * - pan-tilt step both:	byte 1 = 0A, byte 2 = pan step command (00/01), byte 3 = tilt step command (02/03), byte 4 = speed
+ *   In both, an axis byte of NO_MOVE (FF) leaves that axis alone.
  * PROTOCOL LOGIC PC TO XBEE
  *	- startup()
  *		- XBee.open(...)
@@ -69,6 +73,10 @@ class XBeeCommunicatorTask extends SwingWorker<Integer, Integer> {
 	public static final int CMD_PING				= 6 ;
 	public static final int CMD_SELFTEST			= 7 ;
 	public static final int CMD_RESET				= 8 ;
+	public static final int CMD_PAN_TILT_TO			= 9 ;	// Both axes to absolute angles in one packet: pan, tilt
+	public static final int CMD_PAN_TILT_STEP		= 10 ;	// Both axes one step in one packet: pan step command, tilt step command, speed
+
+	public static final int NO_MOVE					= 0xFF ;	// In a combined command, leave this axis where it is
 
 	/*
 	 * Stringified command names
@@ -82,10 +90,13 @@ class XBeeCommunicatorTask extends SwingWorker<Integer, Integer> {
 		"TILT TO",
 		"PING",
 		"SELF TEST",
-		"RESET"
+		"RESET",
+		"PAN TILT TO",
+		"PAN TILT STEP"
 	} ;
     
 	private static XBee xbee = new XBee(); // We communicate with the robot via the XBee api
+	private static final CommandLatency deliveryLatency = new CommandLatency(); // sendSynchronous() to TxStatusResponse, for every delivered command
     
     /*
      * All the information pertaining to the command we are executing in this task
@@ -129,54 +140,95 @@ class XBeeCommunicatorTask extends SwingWorker<Integer, Integer> {
 	@Override
 	protected Integer doInBackground() throws Exception {
 		log.info("Executing command: " + stringifiedCommandName(command)) ;
+		try {
+			if(! send(encode(command, data), commPort, baudRate)) {
+				lastError = stringifiedCommandName(command) + " wasn't acknowledged" ;
+				log.warn(lastError) ;
+			}
+		}
+		catch(XBeeException e) {
+			lastError = "Error executing: " + stringifiedCommandName(command) + ": " + e.getMessage() ;
+			log.error(lastError, e) ;
+			throw e ;
+		}
+		return 0 ;
+	}
+
+	/**
+	 * Opens a communications channel to the XBee explorer, sends an encoded payload and closes the
+	 * channel, on the calling thread.
+	 * 
+	 * Doesn't touch Swing, so it can be used without a GUI (see PanTiltCommander). One command is sent
+	 * at a time - callers on other threads wait their turn.
+	 * 
+	 * @return true if the remote XBee acknowledged the payload
+	 * @throws XBeeException if the payload couldn't be sent
+	 */
+	static boolean send(int[] payload, String commPort, int baudRate) throws XBeeException {
 		synchronized(xbee) {
-			
 			try {
 				if(! xbee.isConnected())
 					xbee.open(commPort, baudRate);
-				switch(command) {
-				case CMD_PAN_LEFT:
-					panLeft() ;
-					break ;
-				case CMD_PAN_RIGHT:
-					panRight() ;
-					break ;
-				case CMD_TILT_UP:
-					tiltUp() ;
-					break ;
-				case CMD_TILT_DOWN: 
-					tiltDown() ;
-					break ;
-				case CMD_PAN_TO:
-					panTo() ;
-					break ;
-				case CMD_TILT_TO:
-					tiltTo() ;
-					break ;
-				case CMD_PING:
-					ping() ;
-					break ;
-				case CMD_SELFTEST:
-					selfTest() ;
-					break ;
-				case CMD_RESET:
-					reset() ;
-					break ;
-				default:
-					lastError = "Invalid command ignored: " + command ;
-					log.error(lastError) ;
-				}
-			}
-			catch(XBeeException e) {
-				lastError = "Error executing: " + stringifiedCommandName(command) + ": " + e.getMessage() ;
-				log.error(lastError, e) ;
-				throw e ;
+				XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
+				return sendCommand(destination, payload) ;
 			} finally {
 				if(xbee.isConnected())
 					xbee.close() ;
 			}
 		}
-		return 0 ;
+	}
+
+	/**
+	 * Makes the two byte payload for a single command.
+	 * 
+	 * @throws XBeeException if the command isn't one we know, or needs encodePanTiltTo() / encodePanTiltStep()
+	 */
+	static int[] encode(int command, int data) throws XBeeException {
+		switch(command) {
+		case CMD_PAN_LEFT:
+		case CMD_PAN_RIGHT:
+			return new int[] { command, 10 } ;
+		case CMD_TILT_UP:
+		case CMD_TILT_DOWN: 
+		case CMD_PAN_TO:
+		case CMD_TILT_TO:
+			return new int[] { command, data } ;
+		case CMD_PING:
+			return new int[] { command, 111 } ;
+		case CMD_SELFTEST:
+		case CMD_RESET:
+			return new int[] { command, 0 } ;
+		default:
+			throw new XBeeException("Invalid command ignored: " + command) ;
+		}
+	}
+
+	/**
+	 * Makes the payload for moving both axes to absolute angles in one packet.
+	 * 
+	 * @param panAngle 0-180, or a negative number to leave the pan where it is
+	 * @param tiltAngle 0-180, or a negative number to leave the tilt where it is
+	 */
+	static int[] encodePanTiltTo(int panAngle, int tiltAngle) {
+		return new int[] { CMD_PAN_TILT_TO, panAngle < 0 ? NO_MOVE : panAngle, tiltAngle < 0 ? NO_MOVE : tiltAngle } ;
+	}
+
+	/**
+	 * Makes the payload for stepping both axes in one packet.
+	 * 
+	 * @param panCommand CMD_PAN_LEFT or CMD_PAN_RIGHT, or a negative number to leave the pan where it is
+	 * @param tiltCommand CMD_TILT_UP or CMD_TILT_DOWN, or a negative number to leave the tilt where it is
+	 * @param speed the step's speed, as for the single step commands
+	 */
+	static int[] encodePanTiltStep(int panCommand, int tiltCommand, int speed) {
+		return new int[] { CMD_PAN_TILT_STEP, panCommand < 0 ? NO_MOVE : panCommand, tiltCommand < 0 ? NO_MOVE : tiltCommand, speed } ;
+	}
+
+	/**
+	 * @return how long commands have been taking to be delivered, for aiming ahead of a moving face
+	 */
+	static CommandLatency getDeliveryLatency() {
+		return deliveryLatency ;
 	}
 		
 	/**
@@ -220,80 +272,30 @@ class XBeeCommunicatorTask extends SwingWorker<Integer, Integer> {
 			cancelButton.setEnabled(false) ;
 	}
 		
-	private void panLeft() throws XBeeTimeoutException, XBeeException {
-		int[] payload = new int[] { this.CMD_PAN_LEFT, 10 };
-		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
-		sendCommand(destination, payload) ;
-	}
-	
-	private void panRight() throws XBeeTimeoutException, XBeeException {		
-		int[] payload = new int[] { this.CMD_PAN_RIGHT, 10 };
-		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
-		sendCommand(destination, payload) ;
-	}
-	
-	private void tiltUp() throws XBeeTimeoutException, XBeeException {		
-		int[] payload = new int[] { this.CMD_TILT_UP, data };
-		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
-		sendCommand(destination, payload) ;
-	}
-	
-	private void tiltDown() throws XBeeTimeoutException, XBeeException {		
-		int[] payload = new int[] { this.CMD_TILT_DOWN, data };
-		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
-		sendCommand(destination, payload) ;
-	}
-	
-	private void tiltTo() throws XBeeTimeoutException, XBeeException {		
-		int[] payload = new int[] { this.CMD_TILT_TO, data };
-		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
-		sendCommand(destination, payload) ;
-	}
-	
-	private void panTo() throws XBeeTimeoutException, XBeeException {		
-		int[] payload = new int[] { this.CMD_PAN_TO, data };
-		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
-		sendCommand(destination, payload) ;
-	}
-	
-	private void ping() throws XBeeTimeoutException, XBeeException {		
-		int[] payload = new int[] { this.CMD_PING, 111 };
-		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
-		sendCommand(destination, payload) ;
-	}
-	
-	private void selfTest() throws XBeeTimeoutException, XBeeException {		
-		int[] payload = new int[] { this.CMD_SELFTEST, 0 };
-		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
-		sendCommand(destination, payload) ;
-	}
-	
-	private void reset() throws XBeeTimeoutException, XBeeException {		
-		int[] payload = new int[] { this.CMD_RESET, 0 };
-		XBeeAddress16 destination = new XBeeAddress16(XBEE_SHIELD_MY_MSB, XBEE_SHIELD_MY_LSB);
-		sendCommand(destination, payload) ;
-	}
-
 	/**
 	 * sends a command to the remote XBee.
 	 * 
 	 * @param destination the remote XBee's MY address
-	 * @param payload an array of two 8 bit numbers - the first is the command, the second is the accompanying data.
+	 * @param payload an array of 8 bit numbers - the first is the command, the rest are the accompanying data (one byte, or more for the combined commands).
+	 * @return true if the remote XBee acknowledged the payload
 	 * @throws XBeeTimeoutException if we timed out trying to communicate with the remote XBee
 	 * @throws XBeeException if there was some other exception communicating with the remote XBee
 	 */
-	private void sendCommand(XBeeAddress16 destination, int[] payload) throws XBeeTimeoutException, XBeeException {
+	private static boolean sendCommand(XBeeAddress16 destination, int[] payload) throws XBeeTimeoutException, XBeeException {
 		TxRequest16 tx = new TxRequest16(destination, payload);
         log.info("Sending request to " + destination);
+        long start = System.nanoTime();
         TxStatusResponse status = (TxStatusResponse) xbee.sendSynchronous(tx);
         if (status.isSuccess()) {
+                deliveryLatency.record(System.nanoTime() - start); // Just the radio transaction - not the wait for the link or opening the port
                 log.info("Sent payload to" + destination);
         } else {
                 log.info("Error sending payload to" + destination);
         }
+        return status.isSuccess();
 	}
 	
-	private String stringifiedCommandName(int commandId) {
+	static String stringifiedCommandName(int commandId) {
 		if(commandId >= 0 && commandId < commandName.length)
 			return commandName[commandId] ;
 		else